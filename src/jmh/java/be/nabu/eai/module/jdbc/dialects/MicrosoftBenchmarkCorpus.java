@@ -0,0 +1,133 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.UUID;
+
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.CollectionNameProperty;
+import be.nabu.libs.types.properties.IndexedProperty;
+import be.nabu.libs.types.properties.MaxLengthProperty;
+import be.nabu.libs.types.properties.MinOccursProperty;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * The statements and types the benchmarks run against, modeled after what services typically send through the dialect.
+ */
+public class MicrosoftBenchmarkCorpus {
+
+	public static final String[] OLTP = new String[] {
+		"select id, name, created from customer where id = :id",
+		"select * from orders where customer_id = :customerId and status = :status order by created desc",
+		"update customer set name = :name, modified = :modified, active = true where id = :id",
+		"delete from session where expires < :now and persistent = false",
+		"select count(*) from order_line where order_id = :orderId"
+	};
+
+	public static final String REPORTING = buildReporting();
+
+	private static String buildReporting() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("select c.id, c.name, c.country,\n");
+		for (int i = 0; i < 40; i++) {
+			builder.append("\t(select sum(ol.amount * ol.quantity) from order_line ol join orders o on o.id = ol.order_id where o.customer_id = c.id and o.created >= :from")
+				.append(i)
+				.append(" and ol.product_category = 'category ''")
+				.append(i)
+				.append("''') as revenue_")
+				.append(i)
+				.append(",\n");
+		}
+		builder.append("\trow_number() over (partition by c.country order by c.created desc) as ranking\n")
+			.append("from customer c\n")
+			.append("where c.active = true and (c.country in (select code from country where region = :region) or c.vip = false)\n")
+			.append("\t-- order by in a comment\n")
+			.append("\tand c.id not in (select customer_id from blacklist where (reason = 'fraud') and (created > :since))\n")
+			.append("order by c.name, c.id");
+		return builder.toString();
+	}
+
+	public static String buildUpsert(int rows) {
+		StringBuilder builder = new StringBuilder("insert into customer_balance (id, customer_id, balance, modified) values ");
+		for (int i = 0; i < rows; i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append("(:id").append(i).append(", :customerId").append(i).append(", :balance").append(i).append(", :modified").append(i).append(")");
+		}
+		builder.append(" on conflict (id) do update set balance = excluded.balance, modified = excluded.modified");
+		return builder.toString();
+	}
+
+	public static Structure buildWideType(int columns) {
+		Structure structure = new Structure();
+		structure.setName("wideRecord");
+		structure.setProperty(new ValueImpl<String>(CollectionNameProperty.getInstance(), "wideRecord"));
+		structure.add(new SimpleElementImpl<UUID>("id", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(UUID.class), structure));
+		for (int i = 1; i < columns; i++) {
+			switch (i % 5) {
+				case 0:
+					structure.add(new SimpleElementImpl<String>("name" + i, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), structure,
+						new ValueImpl<Integer>(MaxLengthProperty.getInstance(), 100), new ValueImpl<Boolean>(IndexedProperty.getInstance(), i % 50 == 0)));
+				break;
+				case 1:
+					structure.add(new SimpleElementImpl<Long>("count" + i, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Long.class), structure));
+				break;
+				case 2:
+					structure.add(new SimpleElementImpl<Date>("created" + i, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Date.class), structure,
+						new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+				break;
+				case 3:
+					structure.add(new SimpleElementImpl<Boolean>("active" + i, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Boolean.class), structure));
+				break;
+				default:
+					structure.add(new SimpleElementImpl<BigDecimal>("amount" + i, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(BigDecimal.class), structure));
+			}
+		}
+		return structure;
+	}
+
+	public static ComplexContent buildWideContent(Structure structure, int columns) {
+		ComplexContent content = structure.newInstance();
+		content.set("id", UUID.randomUUID());
+		for (int i = 1; i < columns; i++) {
+			switch (i % 5) {
+				case 0:
+					content.set("name" + i, "it's value " + i);
+				break;
+				case 1:
+					content.set("count" + i, (long) i);
+				break;
+				case 2:
+					content.set("created" + i, new Date());
+				break;
+				case 3:
+					content.set("active" + i, i % 2 == 0);
+				break;
+				default:
+					content.set("amount" + i, new BigDecimal(i + ".25"));
+			}
+		}
+		return content;
+	}
+}
@@ -0,0 +1,131 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Throughput of the dialect hot paths, run with "-prof gc" to see the allocation rate.
+ * The caches are shared static state, the "cached" parameter toggles them so we can see both the cold and the warm path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MicrosoftSQLBenchmark {
+
+	@Param({ "true", "false" })
+	private boolean cached;
+
+	@State(Scope.Benchmark)
+	public static class Upsert {
+		@Param({ "1", "100", "1000" })
+		private int rows;
+		private String sql;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			sql = MicrosoftBenchmarkCorpus.buildUpsert(rows);
+		}
+	}
+
+	private MicrosoftSQL dialect;
+	private Structure wideType;
+	private ComplexContent wideContent;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		dialect = new MicrosoftSQL();
+		int size = cached ? 1024 : 0;
+		// the uncached baseline must disable every dialect cache, not just the rewrite cache, otherwise it still measures cached lookups
+		MicrosoftSQL.getRewriteCache().setMaxSize(size);
+		MicrosoftQueryScanner.getOrderByCache().setMaxSize(size);
+		MicrosoftQueryScanner.getOptionCache().setMaxSize(size);
+		MicrosoftQueryScanner.getReadOnlyCache().setMaxSize(size);
+		MicrosoftMergeTemplate.getTemplates().setMaxSize(cached ? 256 : 0);
+		MicrosoftInsertExporter.getColumnsCache().setMaxSize(cached ? 256 : 0);
+		MicrosoftColumnMetadata.getTables().setMaxSize(cached ? 512 : 0);
+		MicrosoftPagedQuery.getTotalCache().setMaxSize(size);
+		wideType = MicrosoftBenchmarkCorpus.buildWideType(200);
+		wideContent = MicrosoftBenchmarkCorpus.buildWideContent(wideType, 200);
+	}
+
+	@Benchmark
+	public void rewriteOltp(Blackhole blackhole) {
+		for (String sql : MicrosoftBenchmarkCorpus.OLTP) {
+			blackhole.consume(dialect.rewrite(sql, null, null));
+		}
+	}
+
+	@Benchmark
+	public String rewriteReporting() {
+		return dialect.rewrite(MicrosoftBenchmarkCorpus.REPORTING, null, null);
+	}
+
+	@Benchmark
+	public String rewriteUpsert(Upsert upsert) {
+		return dialect.rewrite(upsert.sql, null, null);
+	}
+
+	@Benchmark
+	public String rewriteMerge(Upsert upsert) throws ParseException {
+		return MicrosoftSQL.rewriteMerge(upsert.sql);
+	}
+
+	@Benchmark
+	public void limitOltp(Blackhole blackhole) {
+		for (String sql : MicrosoftBenchmarkCorpus.OLTP) {
+			blackhole.consume(dialect.limit(sql, 100l, 20));
+		}
+	}
+
+	@Benchmark
+	public String limitReporting() {
+		return dialect.limit(MicrosoftBenchmarkCorpus.REPORTING, 1000l, 50);
+	}
+
+	@Benchmark
+	public String buildInsertWide() {
+		return dialect.buildInsertSQL(wideContent, false);
+	}
+
+	@Benchmark
+	public String buildCreateWide() {
+		return dialect.buildCreateSQL(wideType, false);
+	}
+}
@@ -0,0 +1,268 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pipelines several small parameterized statements into as few round trips as possible: they are combined into one t-sql batch with "set nocount on"
+ * and the result sets are split back out per statement.
+ *
+ * Every statement is followed by "select @@rowcount" so each statement ends with a result set we recognize, regardless of whether it is a query, an update or a procedure call.
+ * A batch can not have more than 2100 parameters, if the statements need more they are spread over multiple batches (in order, on the same connection).
+ * Sql server simply continues with the next statement after most errors, so the statements run in a try/catch that rethrows the first error and stops the batch.
+ * By default the open transaction is left alone, it is up to the caller to commit or roll back. With rollbackOnError the batch runs with "set xact_abort on"
+ * so the first error also rolls back the whole open transaction (not just the batch). In auto commit mode the statements that completed before the error stay committed either way.
+ * Any results that were read before a statement failed remain available.
+ *
+ * The nocount and xact_abort settings of the connection are read first and restored afterwards, also when the batch fails, so they don't change on pooled connections.
+ */
+public class MicrosoftBatch {
+
+	// the column name of the marker, it should never match a column of a user query
+	private static final String UPDATE_COUNT = "__microsoft_batch_rowcount__";
+	// the column name of the original session options (@@options)
+	private static final String OPTIONS = "__microsoft_batch_options__";
+	// the bits of @@options
+	private static final int NOCOUNT = 512, XACT_ABORT = 16384;
+
+	public static class Result {
+		private final String sql;
+		private final List<?> parameters;
+		private String[] columns;
+		private List<Object[]> rows;
+		private long updateCount = -1;
+		private boolean executed;
+
+		private Result(String sql, List<?> parameters) {
+			this.sql = sql;
+			this.parameters = parameters;
+		}
+		public String getSql() {
+			return sql;
+		}
+		// the columns of the (first) result set, null if the statement did not return any
+		public String[] getColumns() {
+			return columns;
+		}
+		// the rows of the (first) result set, null if the statement did not return any
+		public List<Object[]> getRows() {
+			return rows;
+		}
+		// the @@rowcount after the statement: the amount of affected (or selected) rows
+		public long getUpdateCount() {
+			return updateCount;
+		}
+		public boolean isExecuted() {
+			return executed;
+		}
+	}
+
+	private final List<Result> results = new ArrayList<Result>();
+	private final boolean rollbackOnError;
+
+	public MicrosoftBatch() {
+		this(false);
+	}
+
+	/**
+	 * @param rollbackOnError whether an error rolls back the entire open transaction of the connection (set xact_abort on)
+	 */
+	public MicrosoftBatch(boolean rollbackOnError) {
+		this.rollbackOnError = rollbackOnError;
+	}
+
+	/**
+	 * Adds a statement with its positional parameters (can be null), the result is filled in when the batch is executed
+	 */
+	public Result add(String sql, List<?> parameters) {
+		String trimmed = sql.trim();
+		// the terminator is added by the batch
+		while (trimmed.endsWith(";")) {
+			trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+		}
+		if (parameters != null && parameters.size() > MicrosoftMergeTemplate.MAX_PARAMETERS - 1) {
+			throw new IllegalArgumentException("A single statement can not have more than " + (MicrosoftMergeTemplate.MAX_PARAMETERS - 1) + " parameters");
+		}
+		Result result = new Result(trimmed, parameters);
+		results.add(result);
+		return result;
+	}
+
+	public List<Result> getResults() {
+		return results;
+	}
+
+	/**
+	 * Groups the pending statements in batches that stay under the parameter limit
+	 */
+	List<List<Result>> getBatches() {
+		List<List<Result>> batches = new ArrayList<List<Result>>();
+		List<Result> batch = new ArrayList<Result>();
+		int parameters = 0;
+		for (Result result : results) {
+			if (result.executed) {
+				continue;
+			}
+			int size = result.parameters == null ? 0 : result.parameters.size();
+			if (!batch.isEmpty() && parameters + size > MicrosoftMergeTemplate.MAX_PARAMETERS - 1) {
+				batches.add(batch);
+				batch = new ArrayList<Result>();
+				parameters = 0;
+			}
+			batch.add(result);
+			parameters += size;
+		}
+		if (!batch.isEmpty()) {
+			batches.add(batch);
+		}
+		return batches;
+	}
+
+	static String buildSql(List<Result> batch, boolean rollbackOnError) {
+		// the original settings are returned first so we can restore them if the batch fails
+		StringBuilder builder = new StringBuilder("declare @").append(OPTIONS).append(" int = @@options;\nselect @").append(OPTIONS).append(" as ").append(OPTIONS).append(";\n");
+		// the settings are inside the try so the first statement follows a terminated statement, as a common table expression requires
+		builder.append("begin try\nset nocount on;\n");
+		if (rollbackOnError) {
+			builder.append("set xact_abort on;\n");
+		}
+		for (Result result : batch) {
+			builder.append(result.sql).append(";\nselect @@rowcount as ").append(UPDATE_COUNT).append(";\n");
+		}
+		// throw stops the batch, with xact_abort on it also rolls back the transaction
+		builder.append("end try\nbegin catch\n").append(getRestore()).append("throw;\nend catch;\n");
+		// the settings would otherwise stick to the (pooled) connection
+		return builder.append(getRestore()).toString();
+	}
+
+	// only the settings we turn on have to be turned off again
+	private static String getRestore() {
+		return "if (@" + OPTIONS + " & " + NOCOUNT + ") = 0 set nocount off;\n"
+			+ "if (@" + OPTIONS + " & " + XACT_ABORT + ") = 0 set xact_abort off;\n";
+	}
+
+	/**
+	 * Executes all the statements that have not been executed yet, returns the amount of round trips
+	 */
+	public int execute(Connection connection) throws SQLException {
+		int roundTrips = 0;
+		for (List<Result> batch : getBatches()) {
+			roundTrips++;
+			boolean success = false;
+			Integer options = null;
+			PreparedStatement statement = connection.prepareStatement(buildSql(batch, rollbackOnError));
+			try {
+				int index = 1;
+				for (Result result : batch) {
+					if (result.parameters != null) {
+						for (Object parameter : result.parameters) {
+							MicrosoftSQL.bind(statement, index++, parameter);
+						}
+					}
+				}
+				int current = 0;
+				try {
+					boolean isResultSet = statement.execute();
+					while (current < batch.size()) {
+						if (isResultSet) {
+							ResultSet resultSet = statement.getResultSet();
+							try {
+								if (options == null && resultSet.getMetaData().getColumnCount() == 1 && OPTIONS.equalsIgnoreCase(resultSet.getMetaData().getColumnLabel(1))) {
+									options = resultSet.next() ? resultSet.getInt(1) : null;
+								}
+								else if (read(batch.get(current), resultSet)) {
+									current++;
+								}
+							}
+							finally {
+								resultSet.close();
+							}
+						}
+						// with nocount on there should be no update counts, but triggers or procedures can still produce them
+						else if (statement.getUpdateCount() < 0) {
+							break;
+						}
+						isResultSet = statement.getMoreResults();
+					}
+				}
+				catch (SQLException e) {
+					throw new SQLException("Statement " + results.indexOf(batch.get(Math.min(current, batch.size() - 1))) + " of the batch failed: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+				}
+				success = true;
+			}
+			finally {
+				statement.close();
+				// the catch block restores the settings but not every error can be caught (e.g. a cancel)
+				if (!success && options != null) {
+					reset(connection, options);
+				}
+			}
+		}
+		return roundTrips;
+	}
+
+	// returns true if this was the marker that ends the results of the statement
+	private static boolean read(Result result, ResultSet resultSet) throws SQLException {
+		ResultSetMetaData metaData = resultSet.getMetaData();
+		if (metaData.getColumnCount() == 1 && UPDATE_COUNT.equalsIgnoreCase(metaData.getColumnLabel(1))) {
+			result.updateCount = resultSet.next() ? resultSet.getLong(1) : -1;
+			result.executed = true;
+			return true;
+		}
+		// only the first result set of a statement is kept, any additional ones are skipped
+		if (result.rows == null) {
+			result.columns = new String[metaData.getColumnCount()];
+			for (int i = 0; i < result.columns.length; i++) {
+				result.columns[i] = metaData.getColumnLabel(i + 1);
+			}
+			result.rows = new ArrayList<Object[]>();
+			while (resultSet.next()) {
+				Object[] row = new Object[result.columns.length];
+				for (int i = 0; i < row.length; i++) {
+					row[i] = resultSet.getObject(i + 1);
+				}
+				result.rows.add(row);
+			}
+		}
+		return false;
+	}
+
+	// a failed batch does not reach the reset of the settings at the end
+	private static void reset(Connection connection, int options) {
+		try {
+			Statement statement = connection.createStatement();
+			try {
+				statement.execute("set nocount " + ((options & NOCOUNT) == 0 ? "off" : "on") + "; set xact_abort " + ((options & XACT_ABORT) == 0 ? "off" : "on"));
+			}
+			finally {
+				statement.close();
+			}
+		}
+		catch (SQLException e) {
+			// the original exception is more important
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import be.nabu.eai.repository.EAIRepositoryUtils;
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.services.jdbc.JDBCUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.properties.MinOccursProperty;
+
+import com.microsoft.sqlserver.jdbc.ISQLServerBulkRecord;
+
+/**
+ * Exposes a stream of complex contents as a bulk record for SQLServerBulkCopy.
+ * The columns are the same as the ones used by buildInsertSQL, the records are pulled one at a time from the iterator so nothing is materialized.
+ */
+public class MicrosoftBulkRecord implements ISQLServerBulkRecord {
+
+	private final Iterator<? extends ComplexContent> iterator;
+	private final List<Element<?>> elements = new ArrayList<Element<?>>();
+	private final List<String> columns = new ArrayList<String>();
+	private final List<Boolean> mandatory = new ArrayList<Boolean>();
+	// the length of the string and binary columns as buildCreateSQL generates them
+	private final List<Integer> lengths = new ArrayList<Integer>();
+	private final Set<Integer> ordinals = new LinkedHashSet<Integer>();
+	private ComplexContent current;
+	private long rows;
+
+	public MicrosoftBulkRecord(ComplexType type, Iterator<? extends ComplexContent> iterator) {
+		this.iterator = iterator;
+		for (Element<?> element : JDBCUtils.getFieldsInTable(type)) {
+			if (element.getType() instanceof SimpleType) {
+				elements.add(element);
+				columns.add(EAIRepositoryUtils.uncamelify(element.getName()));
+				Integer minOccurs = ValueUtils.getValue(MinOccursProperty.getInstance(), element.getProperties());
+				mandatory.add(minOccurs != null && minOccurs > 0);
+				lengths.add(MicrosoftTypes.getColumnLength(MicrosoftTypes.getColumnType(element)));
+				// bulk copy ordinals are 1-based
+				ordinals.add(elements.size());
+			}
+		}
+	}
+
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	private Class<?> getInstanceClass(int column) {
+		return ((SimpleType<?>) elements.get(column - 1).getType()).getInstanceClass();
+	}
+
+	@Override
+	public Set<Integer> getColumnOrdinals() {
+		return ordinals;
+	}
+
+	@Override
+	public String getColumnName(int column) {
+		return columns.get(column - 1);
+	}
+
+	@Override
+	public int getColumnType(int column) {
+		Class<?> instanceClass = getInstanceClass(column);
+		if (byte[].class.isAssignableFrom(instanceClass)) {
+			return Types.VARBINARY;
+		}
+		return MicrosoftTableValuedParameters.getJdbcType(instanceClass);
+	}
+
+	@Override
+	public int getPrecision(int column) {
+		int type = getColumnType(column);
+		if (type == Types.DECIMAL) {
+			return 38;
+		}
+		// uniqueidentifiers are sent as their 16 bytes
+		else if (type == Types.BINARY) {
+			return 16;
+		}
+		else if (type == Types.TIMESTAMP) {
+			return 27;
+		}
+		// for character and binary types the bulk copy uses the precision as the length of the column
+		else if (type == Types.VARCHAR || type == Types.NVARCHAR || type == Types.VARBINARY) {
+			Integer length = lengths.get(column - 1);
+			// (max) columns
+			return length == null ? Integer.MAX_VALUE : length;
+		}
+		return 0;
+	}
+
+	@Override
+	public int getScale(int column) {
+		int type = getColumnType(column);
+		if (type == Types.DECIMAL) {
+			return BigInteger.class.isAssignableFrom(getInstanceClass(column)) ? 0 : 10;
+		}
+		else if (type == Types.TIMESTAMP) {
+			return 7;
+		}
+		return 0;
+	}
+
+	@Override
+	public boolean isAutoIncrement(int column) {
+		return false;
+	}
+
+	@Override
+	public Object[] getRowData() {
+		Object[] data = new Object[elements.size()];
+		for (int i = 0; i < elements.size(); i++) {
+			Object value = current.get(elements.get(i).getName());
+			// same defaults as buildInsertSQL for mandatory fields without a value
+			if (value == null && mandatory.get(i)) {
+				Class<?> instanceClass = getInstanceClass(i + 1);
+				if (UUID.class.isAssignableFrom(instanceClass)) {
+					value = MicrosoftUUIDs.generate();
+				}
+				else if (Date.class.isAssignableFrom(instanceClass)) {
+					value = new Date();
+				}
+				else if (Number.class.isAssignableFrom(instanceClass)) {
+					value = zero(instanceClass);
+				}
+				else if (Boolean.class.isAssignableFrom(instanceClass)) {
+					value = false;
+				}
+			}
+			data[i] = MicrosoftTableValuedParameters.convert(value);
+		}
+		return data;
+	}
+
+	// the bulk copy casts to the exact java type of the column
+	private static Object zero(Class<?> instanceClass) {
+		if (Long.class.isAssignableFrom(instanceClass)) {
+			return 0l;
+		}
+		else if (Short.class.isAssignableFrom(instanceClass)) {
+			return (short) 0;
+		}
+		else if (Double.class.isAssignableFrom(instanceClass)) {
+			return 0d;
+		}
+		else if (Float.class.isAssignableFrom(instanceClass)) {
+			return 0f;
+		}
+		else if (BigDecimal.class.isAssignableFrom(instanceClass) || BigInteger.class.isAssignableFrom(instanceClass)) {
+			return BigDecimal.ZERO;
+		}
+		return 0;
+	}
+
+	@Override
+	public boolean next() {
+		// release the previous record as soon as possible
+		current = null;
+		if (iterator.hasNext()) {
+			current = iterator.next();
+			rows++;
+			return true;
+		}
+		return false;
+	}
+}
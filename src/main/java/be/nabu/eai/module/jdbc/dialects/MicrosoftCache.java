@@ -0,0 +1,140 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small size-bounded LRU cache with hit/miss/eviction counters.
+ * A maximum size of 0 or less disables the cache entirely, lookups will always miss and nothing is stored.
+ */
+public class MicrosoftCache<K, V> {
+
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+	private final Map<K, V> entries;
+	private volatile int maxSize;
+
+	public MicrosoftCache(int maxSize) {
+		this.maxSize = maxSize;
+		// access order so the eldest entry is the least recently used one
+		this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				if (size() > MicrosoftCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public V get(K key) {
+		if (!isEnabled()) {
+			return null;
+		}
+		V value;
+		synchronized(entries) {
+			value = entries.get(key);
+		}
+		if (value == null) {
+			misses.incrementAndGet();
+		}
+		else {
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	public void put(K key, V value) {
+		if (isEnabled() && key != null && value != null) {
+			synchronized(entries) {
+				entries.put(key, value);
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized(entries) {
+			entries.clear();
+		}
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		// shrink (or empty) the cache right away
+		synchronized(entries) {
+			if (maxSize <= 0) {
+				entries.clear();
+			}
+			else {
+				while (entries.size() > maxSize) {
+					K eldest = entries.keySet().iterator().next();
+					entries.remove(eldest);
+					evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public int size() {
+		synchronized(entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public double getHitRate() {
+		long hits = this.hits.get();
+		long total = hits + misses.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public void resetStatistics() {
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "MicrosoftCache[size=" + size() + "/" + maxSize + ", hits=" + hits.get() + ", misses=" + misses.get() + ", evictions=" + evictions.get() + "]";
+	}
+}
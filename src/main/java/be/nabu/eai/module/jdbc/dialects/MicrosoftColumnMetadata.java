@@ -0,0 +1,225 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Binds parameters with the exact type of the column they are compared to.
+ * If the parameter type has a higher precedence than the column type (e.g. nvarchar vs varchar, datetime2 vs datetime), sql server converts the column instead of the parameter and an index seek becomes a scan.
+ * The column types are read from the database metadata once per table and cached.
+ *
+ * Wrap a parameter with value(table, column, value) to have the statements the dialect executes (see MicrosoftSQL.bind) bind it with the type of that column.
+ */
+public class MicrosoftColumnMetadata {
+
+	private static final MicrosoftCache<String, Map<String, Column>> tables = new MicrosoftCache<String, Map<String, Column>>(Integer.parseInt(System.getProperty("mssql.metadata.cache.size", "512")));
+
+	public static class Column {
+		private final String name, typeName;
+		private final int jdbcType, size, scale;
+
+		Column(String name, String typeName, int jdbcType, int size, int scale) {
+			this.name = name;
+			this.typeName = typeName;
+			this.jdbcType = jdbcType;
+			this.size = size;
+			this.scale = scale;
+		}
+		public String getName() {
+			return name;
+		}
+		public String getTypeName() {
+			return typeName;
+		}
+		public int getJdbcType() {
+			return jdbcType;
+		}
+		public int getSize() {
+			return size;
+		}
+		public int getScale() {
+			return scale;
+		}
+		/**
+		 * The jdbc type that makes the driver send a parameter of the same sql type as the column
+		 */
+		public int getBindType() {
+			String type = typeName.toLowerCase();
+			if (type.equals("bit")) {
+				return Types.BIT;
+			}
+			else if (type.equals("varchar") || type.equals("char") || type.equals("text")) {
+				return Types.VARCHAR;
+			}
+			else if (type.equals("nvarchar") || type.equals("nchar") || type.equals("ntext")) {
+				return Types.NVARCHAR;
+			}
+			else if (type.equals("datetime")) {
+				return microsoft.sql.Types.DATETIME;
+			}
+			else if (type.equals("smalldatetime")) {
+				return microsoft.sql.Types.SMALLDATETIME;
+			}
+			else if (type.equals("datetime2")) {
+				return Types.TIMESTAMP;
+			}
+			else if (type.equals("uniqueidentifier")) {
+				return Types.BINARY;
+			}
+			return jdbcType;
+		}
+	}
+
+	/**
+	 * A parameter that is compared to (or stored in) a specific column
+	 */
+	public static class ColumnValue {
+		private final String table, column;
+		private final Object value;
+
+		private ColumnValue(String table, String column, Object value) {
+			this.table = table;
+			this.column = column;
+			this.value = value;
+		}
+		public String getTable() {
+			return table;
+		}
+		public String getColumn() {
+			return column;
+		}
+		public Object getValue() {
+			return value;
+		}
+		@Override
+		public String toString() {
+			return table + "." + column + "=" + value;
+		}
+	}
+
+	public static ColumnValue value(String table, String column, Object value) {
+		return new ColumnValue(table, column, value);
+	}
+
+	/**
+	 * The columns of the table keyed on their lowercased name
+	 */
+	public static Map<String, Column> getColumns(Connection connection, String table) throws SQLException {
+		String catalog = connection.getCatalog();
+		String key = (catalog + "." + table).toLowerCase();
+		Map<String, Column> columns = tables.get(key);
+		if (columns == null) {
+			columns = new HashMap<String, Column>();
+			String schema = null;
+			int index = table.lastIndexOf('.');
+			if (index > 0) {
+				schema = table.substring(0, index);
+				table = table.substring(index + 1);
+			}
+			DatabaseMetaData metaData = connection.getMetaData();
+			ResultSet result = metaData.getColumns(catalog, schema, table, null);
+			try {
+				while (result.next()) {
+					Column column = new Column(result.getString("COLUMN_NAME"), result.getString("TYPE_NAME"), result.getInt("DATA_TYPE"), result.getInt("COLUMN_SIZE"), result.getInt("DECIMAL_DIGITS"));
+					columns.put(column.getName().toLowerCase(), column);
+				}
+			}
+			finally {
+				result.close();
+			}
+			columns = Collections.unmodifiableMap(columns);
+			// don't cache tables that don't exist (yet)
+			if (!columns.isEmpty()) {
+				tables.put(key, columns);
+			}
+		}
+		return columns;
+	}
+
+	public static Column getColumn(Connection connection, String table, String column) throws SQLException {
+		return getColumns(connection, table).get(column.toLowerCase());
+	}
+
+	/**
+	 * Forget the cached metadata, for example after a schema change
+	 */
+	public static void invalidate() {
+		tables.clear();
+	}
+
+	public static void bind(PreparedStatement statement, int index, Object value, Column column) throws SQLException {
+		if (column == null) {
+			MicrosoftSQL.bind(statement, index, value);
+			return;
+		}
+		int bindType = column.getBindType();
+		if (value == null) {
+			statement.setNull(index, bindType);
+		}
+		else if (bindType == Types.NVARCHAR) {
+			statement.setNString(index, value.toString());
+		}
+		else if (bindType == Types.VARCHAR) {
+			// note that this is only sent as varchar if the connection does not send strings as unicode
+			statement.setObject(index, value.toString(), Types.VARCHAR);
+		}
+		else if (bindType == Types.BIT) {
+			statement.setBoolean(index, value instanceof Boolean ? (Boolean) value : value instanceof Number ? ((Number) value).intValue() != 0 : Boolean.parseBoolean(value.toString()));
+		}
+		else if (bindType == Types.BINARY && value instanceof UUID) {
+			MicrosoftUUIDs.bind(statement, index, (UUID) value);
+		}
+		// the dialect hands uuids around as strings (see getTargetClass), they have to be converted to the uniqueidentifier bytes as well
+		else if (bindType == Types.BINARY && value instanceof String && column.getTypeName().equalsIgnoreCase("uniqueidentifier")) {
+			MicrosoftUUIDs.bind(statement, index, UUID.fromString(((String) value).trim()));
+		}
+		else if (value instanceof Date && (bindType == Types.TIMESTAMP || bindType == microsoft.sql.Types.DATETIME || bindType == microsoft.sql.Types.SMALLDATETIME)) {
+			Timestamp timestamp = value instanceof Timestamp ? (Timestamp) value : new Timestamp(((Date) value).getTime());
+			// the scale makes the driver send a datetime2 with the same fractional precision as the column instead of datetime2(7)
+			if (bindType == Types.TIMESTAMP && column.getTypeName().equalsIgnoreCase("datetime2")) {
+				statement.setObject(index, timestamp, bindType, column.getScale());
+			}
+			else {
+				statement.setObject(index, timestamp, bindType);
+			}
+		}
+		else {
+			statement.setObject(index, value, bindType);
+		}
+	}
+
+	public static void bind(PreparedStatement statement, int index, Object value, String table, String column) throws SQLException {
+		bind(statement, index, value, getColumn(statement.getConnection(), table, column));
+	}
+
+	public static MicrosoftCache<String, Map<String, Column>> getTables() {
+		return tables;
+	}
+}
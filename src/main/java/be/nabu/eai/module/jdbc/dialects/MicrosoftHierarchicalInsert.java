@@ -0,0 +1,364 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import be.nabu.eai.repository.EAIRepositoryUtils;
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.services.jdbc.JDBCUtils;
+import be.nabu.libs.types.ComplexContentWrapperFactory;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.DefinedType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.properties.ForeignKeyProperty;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+
+/**
+ * Inserts a graph of nested complex contents in a single round trip: all the rows are serialized into one json parameter and
+ * a batch with one set-based "insert ... select ... from openjson(...)" per table inserts them (sql server 2016+, compatibility level 130).
+ *
+ * The relations are the ones buildCreateSQL generates: a single complex child is stored in its own table and referenced through "<child>_id" on the parent.
+ * Lists of complex children are stored in their own table as well, if the child type has a field with a foreign key to the parent type, it is filled in.
+ * Missing ids are generated up front (see MicrosoftUUIDs) and set on the contents, so the wiring is known before anything is sent.
+ * The tables are inserted in foreign key dependency order: a table that references another table (through a "<child>_id" column, a field with a foreign key
+ * or because it is a list in that table) is inserted after it. Circular dependencies between different tables can not be resolved in a single batch and are rejected.
+ */
+public class MicrosoftHierarchicalInsert {
+
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS").withZone(ZoneOffset.UTC);
+
+	private static class Table {
+		private final String name;
+		private final ComplexType type;
+		private final List<Element<?>> columns = new ArrayList<Element<?>>();
+		private final List<String> json = new ArrayList<String>();
+		// the tables that have to be inserted before this one
+		private final Set<String> dependencies = new LinkedHashSet<String>();
+
+		private Table(ComplexType type) {
+			this.type = type;
+			this.name = EAIRepositoryUtils.uncamelify(MicrosoftSQL.getName(type.getProperties()));
+			for (Element<?> element : JDBCUtils.getFieldsInTable(type)) {
+				columns.add(element);
+			}
+		}
+	}
+
+	// keyed on the table name, in the order they are first encountered
+	private final Map<String, Table> tables = new LinkedHashMap<String, Table>();
+	private long rows;
+
+	public MicrosoftHierarchicalInsert(Collection<? extends ComplexContent> contents) {
+		for (ComplexContent content : contents) {
+			add(content, null);
+		}
+	}
+
+	/**
+	 * Adds the content and its children, returns the id of the content
+	 */
+	private Object add(ComplexContent content, ComplexContent parent) {
+		ComplexType type = content.getType();
+		if (type.get("id") == null) {
+			throw new IllegalArgumentException("The type " + MicrosoftSQL.getName(type.getProperties()) + " needs an 'id' field to be part of a hierarchical insert");
+		}
+		Object id = content.get("id");
+		if (id == null && type.get("id").getType() instanceof SimpleType && UUID.class.isAssignableFrom(((SimpleType<?>) type.get("id").getType()).getInstanceClass())) {
+			id = MicrosoftUUIDs.generate();
+			content.set("id", id);
+		}
+		if (id == null) {
+			throw new IllegalArgumentException("The content of type " + MicrosoftSQL.getName(type.getProperties()) + " has no id");
+		}
+		// wire up the reference to the parent if there is a field for it
+		if (parent != null && parent.getType() instanceof DefinedType) {
+			String parentTypeId = ((DefinedType) parent.getType()).getId();
+			for (Element<?> element : JDBCUtils.getFieldsInTable(type)) {
+				String foreignKey = ValueUtils.getValue(ForeignKeyProperty.getInstance(), element.getProperties());
+				if (foreignKey != null && foreignKey.startsWith(parentTypeId + ":") && content.get(element.getName()) == null) {
+					content.set(element.getName(), parent.get(foreignKey.substring(parentTypeId.length() + 1)));
+				}
+			}
+		}
+		Table table = getTable(type);
+		// a list item depends on the table of its parent
+		if (parent != null) {
+			table.dependencies.add(getTable(parent.getType()).name);
+		}
+		List<Element<?>> lists = new ArrayList<Element<?>>();
+		Map<String, Object> references = new LinkedHashMap<String, Object>();
+		for (Element<?> element : TypeUtils.getAllChildren(type)) {
+			if (element.getType() instanceof ComplexType) {
+				Object value = content.get(element.getName());
+				if (value == null) {
+					continue;
+				}
+				Integer maxOccurs = ValueUtils.getValue(MaxOccursProperty.getInstance(), element.getProperties());
+				// lists are inserted after the parent so they can reference it
+				if (maxOccurs != null && maxOccurs != 1) {
+					lists.add(element);
+				}
+				// the referenced child has to exist before the parent
+				else {
+					ComplexContent child = toContent(value);
+					references.put(EAIRepositoryUtils.uncamelify(element.getName()) + "_id", add(child, null));
+					table.dependencies.add(getTable(child.getType()).name);
+				}
+			}
+		}
+		table.json.add(toJson(table, content, references));
+		rows++;
+		for (Element<?> element : lists) {
+			Object value = content.get(element.getName());
+			Iterable<?> items = value instanceof Iterable ? (Iterable<?>) value : value instanceof Object[] ? Arrays.asList((Object[]) value) : Arrays.asList(value);
+			for (Object item : items) {
+				if (item != null) {
+					add(toContent(item), content);
+				}
+			}
+		}
+		return id;
+	}
+
+	private Table getTable(ComplexType type) {
+		String name = EAIRepositoryUtils.uncamelify(MicrosoftSQL.getName(type.getProperties()));
+		Table table = tables.get(name);
+		if (table == null) {
+			table = new Table(type);
+			tables.put(table.name, table);
+		}
+		return table;
+	}
+
+	/**
+	 * Sorts the tables topologically on their dependencies, tables without a mutual dependency keep the order in which they were encountered
+	 */
+	private List<Table> getOrderedTables() {
+		// the foreign keys declared on the types can point to other tables in the batch
+		for (Table table : tables.values()) {
+			for (Element<?> element : table.columns) {
+				String foreignKey = ValueUtils.getValue(ForeignKeyProperty.getInstance(), element.getProperties());
+				if (foreignKey != null && foreignKey.indexOf(':') > 0) {
+					String typeId = foreignKey.substring(0, foreignKey.indexOf(':'));
+					for (Table referenced : tables.values()) {
+						if (referenced.type instanceof DefinedType && typeId.equals(((DefinedType) referenced.type).getId())) {
+							table.dependencies.add(referenced.name);
+						}
+					}
+				}
+			}
+		}
+		List<Table> ordered = new ArrayList<Table>();
+		Set<String> inserted = new HashSet<String>();
+		while (ordered.size() < tables.size()) {
+			boolean progress = false;
+			for (Table table : tables.values()) {
+				if (!inserted.contains(table.name)) {
+					boolean ready = true;
+					for (String dependency : table.dependencies) {
+						// a table can reference itself, the constraint is only checked at the end of the statement
+						if (!dependency.equals(table.name) && !inserted.contains(dependency)) {
+							ready = false;
+							break;
+						}
+					}
+					if (ready) {
+						ordered.add(table);
+						inserted.add(table.name);
+						progress = true;
+					}
+				}
+			}
+			if (!progress) {
+				List<String> remaining = new ArrayList<String>(tables.keySet());
+				remaining.removeAll(inserted);
+				throw new IllegalArgumentException("The tables " + remaining + " depend on each other and can not be inserted in a single batch");
+			}
+		}
+		return ordered;
+	}
+
+	private static ComplexContent toContent(Object value) {
+		if (value instanceof ComplexContent) {
+			return (ComplexContent) value;
+		}
+		ComplexContent content = ComplexContentWrapperFactory.getInstance().getWrapper().wrap(value);
+		if (content == null) {
+			throw new IllegalArgumentException("Can not insert an instance of " + value.getClass());
+		}
+		return content;
+	}
+
+	private static String toJson(Table table, ComplexContent content, Map<String, Object> references) {
+		StringBuilder builder = new StringBuilder("{");
+		boolean first = true;
+		for (Element<?> element : table.columns) {
+			String column = EAIRepositoryUtils.uncamelify(element.getName());
+			Object value;
+			if (element.getType() instanceof ComplexType) {
+				column += "_id";
+				value = references.get(column);
+			}
+			else {
+				value = content.get(element.getName());
+			}
+			if (value == null) {
+				continue;
+			}
+			if (!first) {
+				builder.append(",");
+			}
+			first = false;
+			appendString(builder, column);
+			builder.append(":");
+			// openjson parses the string form of a uniqueidentifier
+			appendValue(builder, value instanceof UUID ? value.toString() : MicrosoftTableValuedParameters.convert(value));
+		}
+		return builder.append("}").toString();
+	}
+
+	private static void appendValue(StringBuilder builder, Object value) {
+		if (value instanceof Boolean || value instanceof Number) {
+			builder.append(value);
+		}
+		else if (value instanceof Date) {
+			appendString(builder, TIMESTAMP.format(((Date) value).toInstant()));
+		}
+		// openjson decodes base64 for binary columns
+		else if (value instanceof byte[]) {
+			appendString(builder, Base64.getEncoder().encodeToString((byte[]) value));
+		}
+		else {
+			appendString(builder, value.toString());
+		}
+	}
+
+	private static void appendString(StringBuilder builder, String value) {
+		builder.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char character = value.charAt(i);
+			switch (character) {
+				case '"': builder.append("\\\""); break;
+				case '\\': builder.append("\\\\"); break;
+				case '\n': builder.append("\\n"); break;
+				case '\r': builder.append("\\r"); break;
+				case '\t': builder.append("\\t"); break;
+				default:
+					if (character < 0x20) {
+						builder.append(String.format("\\u%04x", (int) character));
+					}
+					else {
+						builder.append(character);
+					}
+			}
+		}
+		builder.append('"');
+	}
+
+	/**
+	 * The json parameter, an object with an array of rows per table
+	 */
+	public String getJson() {
+		StringBuilder builder = new StringBuilder("{");
+		boolean first = true;
+		for (Table table : tables.values()) {
+			if (!first) {
+				builder.append(",");
+			}
+			first = false;
+			appendString(builder, table.name);
+			builder.append(":[").append(String.join(",", table.json)).append("]");
+		}
+		return builder.append("}").toString();
+	}
+
+	/**
+	 * The batch, it has a single parameter: the json
+	 */
+	public String getSql() {
+		// no "set nocount on", it would stick to the (pooled) connection
+		StringBuilder builder = new StringBuilder("declare @json nvarchar(max) = ?;\n");
+		for (Table table : getOrderedTables()) {
+			List<String> names = new ArrayList<String>();
+			List<String> definitions = new ArrayList<String>();
+			for (Element<?> element : table.columns) {
+				String column = EAIRepositoryUtils.uncamelify(element.getName());
+				if (element.getType() instanceof ComplexType) {
+					column += "_id";
+					definitions.add(column + " uniqueidentifier");
+				}
+				else {
+					definitions.add(column + " " + MicrosoftTypes.getColumnType(element));
+				}
+				names.add(column);
+			}
+			String columns = String.join(", ", names);
+			builder.append("insert into ").append(table.name).append(" (").append(columns).append(")")
+				.append(" select ").append(columns)
+				.append(" from openjson(@json, '$.\"").append(table.name).append("\"') with (").append(String.join(", ", definitions)).append(");\n");
+		}
+		return builder.toString();
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	 * Runs the batch in the transaction of the connection, returns the amount of inserted rows
+	 */
+	public long execute(Connection connection) throws SQLException {
+		if (tables.isEmpty()) {
+			return 0;
+		}
+		PreparedStatement statement = connection.prepareStatement(getSql());
+		try {
+			// always send it as unicode, regardless of the sendStringParametersAsUnicode setting
+			statement.setNString(1, getJson());
+			statement.execute();
+			// read past the update count of every insert, an error in a later insert is only raised when we get to it
+			while (statement.getMoreResults() || statement.getUpdateCount() != -1) {
+				// nothing to read
+			}
+			return rows;
+		}
+		finally {
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the rows that changed since the last read based on a rowversion column (see the rowVersion option of MicrosoftTableOptions).
+ *
+ * Every insert or update gets a new, database wide increasing rowversion. Rows are read in rowversion order after the last seen value
+ * but only below MIN_ACTIVE_ROWVERSION(): that version itself and everything above it might still belong to open transactions that commit later with a lower value than rows we have already read.
+ * The high-water mark is the highest rowversion that was returned, pass it in as the last seen value of the next read.
+ * The cost of a read depends on the amount of changed rows, not on the size of the table.
+ */
+public class MicrosoftIncrementalRead {
+
+	public static class Changes {
+		private final String[] columns;
+		private final List<Object[]> rows;
+		private final byte[] highWaterMark;
+		private final boolean complete;
+
+		private Changes(String[] columns, List<Object[]> rows, byte[] highWaterMark, boolean complete) {
+			this.columns = columns;
+			this.rows = rows;
+			this.highWaterMark = highWaterMark;
+			this.complete = complete;
+		}
+		public String[] getColumns() {
+			return columns;
+		}
+		public List<Object[]> getRows() {
+			return rows;
+		}
+		public byte[] getHighWaterMark() {
+			return highWaterMark;
+		}
+		// whether we have caught up, if false there are more changes to read
+		public boolean isComplete() {
+			return complete;
+		}
+	}
+
+	private final String sql, column;
+	private final Integer limit;
+
+	MicrosoftIncrementalRead(String sql, String column, Integer limit) {
+		this.sql = sql;
+		this.column = column;
+		this.limit = limit;
+	}
+
+	/**
+	 * The statement, the parameters of the original query come first, followed by the last seen rowversion (binary(8))
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	public String getColumn() {
+		return column;
+	}
+
+	/**
+	 * @param parameters the positional parameters of the original query, can be null
+	 * @param lastSeen the high-water mark of the previous read, null to read everything
+	 */
+	public Changes execute(Connection connection, List<?> parameters, byte[] lastSeen) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			int index = 1;
+			if (parameters != null) {
+				for (Object parameter : parameters) {
+					MicrosoftSQL.bind(statement, index++, parameter);
+				}
+			}
+			statement.setBytes(index, lastSeen == null ? new byte[8] : lastSeen);
+			ResultSet result = statement.executeQuery();
+			try {
+				ResultSetMetaData metaData = result.getMetaData();
+				String[] columns = new String[metaData.getColumnCount()];
+				int versionIndex = -1;
+				for (int i = 0; i < columns.length; i++) {
+					columns[i] = metaData.getColumnLabel(i + 1);
+					if (columns[i].equalsIgnoreCase(column)) {
+						versionIndex = i;
+					}
+				}
+				if (versionIndex < 0) {
+					throw new IllegalArgumentException("The query does not select the rowversion column: " + column);
+				}
+				List<Object[]> rows = new ArrayList<Object[]>();
+				byte[] highWaterMark = lastSeen;
+				while (result.next()) {
+					Object[] row = new Object[columns.length];
+					for (int i = 0; i < columns.length; i++) {
+						row[i] = result.getObject(i + 1);
+					}
+					rows.add(row);
+					// the rows are ordered on the rowversion so the last one is the highest
+					highWaterMark = result.getBytes(versionIndex + 1);
+				}
+				return new Changes(columns, rows, highWaterMark, limit == null || rows.size() < limit);
+			}
+			finally {
+				result.close();
+			}
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * A rowversion is an 8 byte big endian counter
+	 */
+	public static long toLong(byte[] rowVersion) {
+		if (rowVersion == null) {
+			return 0;
+		}
+		long value = 0;
+		for (byte part : rowVersion) {
+			value = (value << 8) | (part & 0xff);
+		}
+		return value;
+	}
+
+	public static byte[] toBytes(long rowVersion) {
+		byte[] bytes = new byte[8];
+		for (int i = 7; i >= 0; i--) {
+			bytes[i] = (byte) rowVersion;
+			rowVersion >>>= 8;
+		}
+		return bytes;
+	}
+}
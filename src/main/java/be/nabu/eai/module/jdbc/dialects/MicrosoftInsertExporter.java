@@ -0,0 +1,394 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import be.nabu.eai.repository.EAIRepositoryUtils;
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.services.jdbc.JDBCUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.properties.FormatProperty;
+import be.nabu.libs.types.properties.MinOccursProperty;
+
+/**
+ * Writes insert statements for complex contents, consecutive records of the same type are combined in multi-row inserts.
+ * The column metadata is calculated once per type and the formatters are immutable so a single exporter can be shared between threads.
+ */
+public class MicrosoftInsertExporter {
+
+	// sql server does not allow more than 1000 rows in a single values clause
+	public static final int MAX_ROWS = 1000;
+
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS").withZone(ZoneOffset.UTC);
+	private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneOffset.UTC);
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneOffset.UTC);
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private static final MicrosoftCache<ComplexType, Columns> columns = new MicrosoftCache<ComplexType, Columns>(Integer.parseInt(System.getProperty("mssql.insert.cache.size", "256")));
+
+	private final int rowsPerStatement;
+
+	public MicrosoftInsertExporter() {
+		this(MAX_ROWS);
+	}
+
+	public MicrosoftInsertExporter(int rowsPerStatement) {
+		if (rowsPerStatement < 1 || rowsPerStatement > MAX_ROWS) {
+			throw new IllegalArgumentException("The rows per statement must be between 1 and " + MAX_ROWS);
+		}
+		this.rowsPerStatement = rowsPerStatement;
+	}
+
+	public static MicrosoftCache<ComplexType, ?> getColumnsCache() {
+		return columns;
+	}
+
+	private enum Kind {
+		BOOLEAN, TIMESTAMP, DATE, TIME, STRING, UNICODE, BINARY, NUMBER
+	}
+
+	static class Columns {
+		private final String table;
+		private final String[] names, columnNames;
+		private final Kind[] kinds;
+		private final Class<?>[] classes;
+		private final boolean[] mandatory;
+		private final String header, singleHeader;
+
+		private Columns(ComplexType type) {
+			List<Element<?>> elements = new ArrayList<Element<?>>();
+			for (Element<?> element : JDBCUtils.getFieldsInTable(type)) {
+				if (element.getType() instanceof SimpleType) {
+					elements.add(element);
+				}
+			}
+			table = EAIRepositoryUtils.uncamelify(MicrosoftSQL.getName(type.getProperties()));
+			names = new String[elements.size()];
+			columnNames = new String[elements.size()];
+			kinds = new Kind[elements.size()];
+			classes = new Class<?>[elements.size()];
+			mandatory = new boolean[elements.size()];
+			StringBuilder header = new StringBuilder("insert into ").append(table).append(" (");
+			for (int i = 0; i < elements.size(); i++) {
+				Element<?> element = elements.get(i);
+				names[i] = element.getName();
+				columnNames[i] = EAIRepositoryUtils.uncamelify(element.getName());
+				classes[i] = ((SimpleType<?>) element.getType()).getInstanceClass();
+				kinds[i] = getKind(element, classes[i]);
+				Integer minOccurs = ValueUtils.getValue(MinOccursProperty.getInstance(), element.getProperties());
+				mandatory[i] = minOccurs != null && minOccurs > 0;
+				if (i > 0) {
+					header.append(", ");
+				}
+				header.append(columnNames[i]);
+			}
+			this.header = header.append(")").toString();
+			// the layout of buildInsertSQL, one column per line
+			this.singleHeader = "insert into " + table + " (\n\t" + String.join(",\n\t", columnNames) + "\n) values (\n\t";
+		}
+
+		private static Kind getKind(Element<?> element, Class<?> instanceClass) {
+			if (Boolean.class.isAssignableFrom(instanceClass)) {
+				return Kind.BOOLEAN;
+			}
+			else if (Date.class.isAssignableFrom(instanceClass)) {
+				Value<String> property = element.getProperty(FormatProperty.getInstance());
+				if (property != null && "date".equals(property.getValue())) {
+					return Kind.DATE;
+				}
+				else if (property != null && "time".equals(property.getValue())) {
+					return Kind.TIME;
+				}
+				return Kind.TIMESTAMP;
+			}
+			else if (byte[].class.isAssignableFrom(instanceClass)) {
+				return Kind.BINARY;
+			}
+			else if (Number.class.isAssignableFrom(instanceClass)) {
+				return Kind.NUMBER;
+			}
+			else if (UUID.class.isAssignableFrom(instanceClass)) {
+				return Kind.STRING;
+			}
+			return Kind.UNICODE;
+		}
+
+		String getTable() {
+			return table;
+		}
+
+		String[] getNames() {
+			return names;
+		}
+
+		Class<?>[] getClasses() {
+			return classes;
+		}
+	}
+
+	static Columns getColumns(ComplexType type) {
+		Columns result = columns.get(type);
+		if (result == null) {
+			result = new Columns(type);
+			columns.put(type, result);
+		}
+		return result;
+	}
+
+	/**
+	 * The single row insert as generated by buildInsertSQL
+	 */
+	public String toInsert(ComplexContent content) {
+		Columns columns = getColumns(content.getType());
+		StringBuilder builder = new StringBuilder(columns.singleHeader);
+		appendValues(builder, columns, content, ",\n\t");
+		return builder.append("\n);").toString();
+	}
+
+	public long export(Stream<? extends ComplexContent> contents, Writer writer) throws IOException {
+		return export(contents.iterator(), writer);
+	}
+
+	public long export(Iterable<? extends ComplexContent> contents, Writer writer) throws IOException {
+		return export(contents.iterator(), writer);
+	}
+
+	public long export(Iterator<? extends ComplexContent> contents, WritableByteChannel channel) throws IOException {
+		Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 65536);
+		long result = export(contents, writer);
+		// we flush but don't close, the channel belongs to the caller
+		writer.flush();
+		return result;
+	}
+
+	/**
+	 * Streams the contents to the writer, only the rows of the statement that is being built are kept in memory
+	 */
+	public long export(Iterator<? extends ComplexContent> contents, Writer writer) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		Columns current = null;
+		int rows = 0;
+		long total = 0;
+		while (contents.hasNext()) {
+			ComplexContent content = contents.next();
+			Columns columns = getColumns(content.getType());
+			if (current != columns || rows >= rowsPerStatement) {
+				if (current != null) {
+					builder.append(";\n");
+					writer.append(builder);
+					builder.setLength(0);
+				}
+				builder.append(columns.header).append(" values\n\t");
+				current = columns;
+				rows = 0;
+			}
+			else {
+				builder.append(",\n\t");
+			}
+			builder.append("(");
+			appendValues(builder, columns, content, ", ");
+			builder.append(")");
+			rows++;
+			total++;
+		}
+		if (current != null) {
+			builder.append(";\n");
+			writer.append(builder);
+		}
+		return total;
+	}
+
+	/**
+	 * Renders the statements on multiple threads, the output is written in the original order.
+	 */
+	public long exportParallel(List<? extends ComplexContent> contents, Writer writer, int parallelism) throws IOException {
+		int statements = (contents.size() + rowsPerStatement - 1) / rowsPerStatement;
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.submit(() -> IntStream.range(0, statements).parallel()
+				.mapToObj(statement -> {
+					StringBuilder builder = new StringBuilder();
+					StringBuilderWriter output = new StringBuilderWriter(builder);
+					try {
+						export(contents.subList(statement * rowsPerStatement, Math.min(contents.size(), (statement + 1) * rowsPerStatement)).iterator(), output);
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					return builder;
+				})
+				.forEachOrdered(builder -> {
+					try {
+						writer.append(builder);
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				})).get();
+		}
+		catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+		return contents.size();
+	}
+
+	private static void appendValues(StringBuilder builder, Columns columns, ComplexContent content, String separator) {
+		for (int i = 0; i < columns.names.length; i++) {
+			if (i > 0) {
+				builder.append(separator);
+			}
+			Object value = content.get(columns.names[i]);
+			// if there is no value but it is mandatory, try to generate one
+			if (value == null && columns.mandatory[i]) {
+				value = generate(columns.classes[i]);
+			}
+			appendValue(builder, columns.kinds[i], value);
+		}
+	}
+
+	private static Object generate(Class<?> instanceClass) {
+		if (UUID.class.isAssignableFrom(instanceClass)) {
+			return MicrosoftUUIDs.generate();
+		}
+		else if (Date.class.isAssignableFrom(instanceClass)) {
+			return new Date();
+		}
+		else if (Number.class.isAssignableFrom(instanceClass)) {
+			return 0;
+		}
+		else if (Boolean.class.isAssignableFrom(instanceClass)) {
+			return false;
+		}
+		return null;
+	}
+
+	private static void appendValue(StringBuilder builder, Kind kind, Object value) {
+		if (value == null) {
+			builder.append("null");
+			return;
+		}
+		switch (kind) {
+			case BOOLEAN:
+				builder.append((Boolean) value ? "1" : "0");
+			break;
+			case TIMESTAMP:
+				builder.append("'");
+				TIMESTAMP.formatTo(((Date) value).toInstant(), builder);
+				builder.append("'");
+			break;
+			case DATE:
+				builder.append("'");
+				DATE.formatTo(((Date) value).toInstant(), builder);
+				builder.append("'");
+			break;
+			case TIME:
+				builder.append("'");
+				TIME.formatTo(((Date) value).toInstant(), builder);
+				builder.append("'");
+			break;
+			case NUMBER:
+				// t-sql has no literal for these
+				if ((value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) || (value instanceof Float && (((Float) value).isNaN() || ((Float) value).isInfinite()))) {
+					throw new IllegalArgumentException("Can not export the value " + value + ", sql server does not support it");
+				}
+				builder.append(value instanceof BigDecimal ? ((BigDecimal) value).toPlainString() : value.toString());
+			break;
+			case BINARY:
+				builder.append("0x");
+				for (byte single : (byte[]) value) {
+					builder.append(HEX[(single >> 4) & 0xF]).append(HEX[single & 0xF]);
+				}
+			break;
+			case UNICODE:
+				builder.append("N");
+				// fall through to the quoted literal
+			case STRING:
+				appendLiteral(builder, value instanceof char[] ? new String((char[]) value) : value.toString());
+			break;
+		}
+	}
+
+	static void appendLiteral(StringBuilder builder, String value) {
+		builder.append("'");
+		for (int i = 0; i < value.length(); i++) {
+			char character = value.charAt(i);
+			if (character == '\'') {
+				builder.append("''");
+			}
+			else {
+				builder.append(character);
+			}
+		}
+		builder.append("'");
+	}
+
+	private static class StringBuilderWriter extends Writer {
+		private final StringBuilder builder;
+		private StringBuilderWriter(StringBuilder builder) {
+			this.builder = builder;
+		}
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			builder.append(cbuf, off, len);
+		}
+		@Override
+		public Writer append(CharSequence csq) {
+			builder.append(csq);
+			return this;
+		}
+		@Override
+		public void flush() {
+			// nothing to flush
+		}
+		@Override
+		public void close() {
+			// nothing to close
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+/**
+ * Can be plugged into the dialect with MicrosoftSQL.setInstrumentation() to see what the dialect does and what it costs.
+ * When no instrumentation is set, the dialect does not even look at the clock.
+ */
+public interface MicrosoftInstrumentation {
+
+	public enum Operation {
+		REWRITE, MERGE_REWRITE, LIMIT, SET_ARRAY, INSERT_GENERATION, CREATE_GENERATION, BULK_INSERT
+	}
+
+	/**
+	 * Called after each operation
+	 * @param nanos the time the operation took
+	 * @param inputSize the size of the input (e.g. the length of the original sql, the amount of array elements,...)
+	 * @param outputSize the size of the output (e.g. the length of the generated sql, the amount of rows,...)
+	 */
+	public void record(Operation operation, long nanos, long inputSize, long outputSize);
+
+	/**
+	 * Structured debug information about the internals of an operation
+	 */
+	public default void debug(Operation operation, String key, Object value) {
+		// not interested by default
+	}
+
+	/**
+	 * Whether the debug information is wanted, the dialect checks this before it builds anything for the debug call
+	 */
+	public default boolean isDebug() {
+		return false;
+	}
+}
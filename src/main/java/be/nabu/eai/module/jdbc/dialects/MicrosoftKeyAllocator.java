@@ -0,0 +1,156 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+/**
+ * A hi-lo key allocator on top of a sequence (see the sequence option of MicrosoftTableOptions): a range of values is reserved in one round trip with sp_sequence_get_range
+ * and handed out from memory without locking, only the thread that finds the block exhausted reserves the next one.
+ *
+ * The block size adapts to the consumption rate: if a block lasted less than the target interval the next one is twice as large, if it lasted more than four times the target it is halved.
+ * Values that are reserved but not handed out (e.g. on shutdown) are lost, so the keys are unique and increasing per allocator but not gapless.
+ * The sequence must have an increment of 1 and must not cycle.
+ */
+public class MicrosoftKeyAllocator {
+
+	private static class Block {
+		private final AtomicLong next;
+		private final long end, started;
+		private Block(long first, long size) {
+			this.next = new AtomicLong(first);
+			this.end = first + size;
+			this.started = System.currentTimeMillis();
+		}
+	}
+
+	private final DataSource dataSource;
+	private final String sequence;
+	private final int minimumBlockSize, maximumBlockSize;
+	private final long targetInterval;
+	private volatile Block block = new Block(0, 0);
+	private volatile int blockSize;
+	private final AtomicLong reservations = new AtomicLong(), allocated = new AtomicLong();
+
+	public MicrosoftKeyAllocator(DataSource dataSource, String sequence) {
+		this(dataSource, sequence, Integer.parseInt(System.getProperty("mssql.sequence.block.minimum", "100")), Integer.parseInt(System.getProperty("mssql.sequence.block.maximum", "100000")), Long.parseLong(System.getProperty("mssql.sequence.block.interval", "1000")));
+	}
+
+	/**
+	 * @param targetInterval the amount of milliseconds a block should last
+	 */
+	public MicrosoftKeyAllocator(DataSource dataSource, String sequence, int minimumBlockSize, int maximumBlockSize, long targetInterval) {
+		if (minimumBlockSize < 1 || maximumBlockSize < minimumBlockSize) {
+			throw new IllegalArgumentException("Invalid block sizes: " + minimumBlockSize + " - " + maximumBlockSize);
+		}
+		this.dataSource = dataSource;
+		this.sequence = sequence;
+		this.minimumBlockSize = minimumBlockSize;
+		this.maximumBlockSize = maximumBlockSize;
+		this.targetInterval = targetInterval;
+		this.blockSize = minimumBlockSize;
+	}
+
+	public long next() throws SQLException {
+		while (true) {
+			Block current = block;
+			long value = current.next.getAndIncrement();
+			if (value < current.end) {
+				allocated.incrementAndGet();
+				return value;
+			}
+			synchronized(this) {
+				// another thread may have reserved a new block in the meantime
+				if (block == current) {
+					block = reserve(current);
+				}
+			}
+		}
+	}
+
+	private Block reserve(Block previous) throws SQLException {
+		// the very first block has no consumption to base the size on
+		if (previous.end > 0) {
+			long lasted = System.currentTimeMillis() - previous.started;
+			if (lasted < targetInterval) {
+				blockSize = Math.min(maximumBlockSize, blockSize * 2);
+			}
+			else if (lasted > targetInterval * 4) {
+				blockSize = Math.max(minimumBlockSize, blockSize / 2);
+			}
+		}
+		int size = blockSize;
+		Connection connection = dataSource.getConnection();
+		try {
+			// the first value is a sql_variant output parameter, we cast it in the batch itself so no variant support is needed from the driver
+			PreparedStatement statement = connection.prepareStatement("declare @first sql_variant;\nexec sys.sp_sequence_get_range @sequence_name = ?, @range_size = ?, @range_first_value = @first output;\nselect cast(@first as bigint);");
+			try {
+				statement.setString(1, sequence);
+				statement.setLong(2, size);
+				// no "set nocount on" because it would stick to the pooled connection, skip any update counts instead
+				boolean isResultSet = statement.execute();
+				while (!isResultSet && statement.getUpdateCount() != -1) {
+					isResultSet = statement.getMoreResults();
+				}
+				if (!isResultSet) {
+					throw new SQLException("Could not reserve a range from the sequence: " + sequence);
+				}
+				ResultSet result = statement.getResultSet();
+				try {
+					if (!result.next()) {
+						throw new SQLException("Could not reserve a range from the sequence: " + sequence);
+					}
+					reservations.incrementAndGet();
+					return new Block(result.getLong(1), size);
+				}
+				finally {
+					result.close();
+				}
+			}
+			finally {
+				statement.close();
+			}
+		}
+		finally {
+			connection.close();
+		}
+	}
+
+	public String getSequence() {
+		return sequence;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	// the amount of round trips to the server
+	public long getReservations() {
+		return reservations.get();
+	}
+
+	public long getAllocated() {
+		return allocated.get();
+	}
+}
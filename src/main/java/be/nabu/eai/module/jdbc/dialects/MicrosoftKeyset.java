@@ -0,0 +1,162 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A keyset (or seek) page: instead of skipping "offset" rows, we continue after the last key that was seen.
+ * T-SQL does not support row value comparisons like (k1, k2) > (?, ?) so it is expanded to:
+ *
+ * k1 >= ? and ((k1 > ?) or (k1 = ? and k2 > ?))
+ *
+ * The keys should be non-null and together they must be unique (e.g. end with the primary key) otherwise rows can be skipped.
+ * The keys are columns of the select, a table qualifier (e.g. "o.id") is dropped because the derived table only exposes the bare column name.
+ * The parameters are positional, use getParameters() to get the values in the order they appear in the sql.
+ */
+public class MicrosoftKeyset {
+
+	private final String sql;
+	private final int[] parameterOrder;
+
+	MicrosoftKeyset(String sql, int[] parameterOrder) {
+		this.sql = sql;
+		this.parameterOrder = parameterOrder;
+	}
+
+	/**
+	 * @param sql the query without an order by or pagination
+	 * @param keys the order by columns, optionally followed by "desc"
+	 * @param hasLastKey false for the first page, true if we continue from a previous page
+	 * @param limit the page size, can be null
+	 */
+	public static MicrosoftKeyset build(String sql, List<String> keys, boolean hasLastKey, Integer limit) {
+		if (keys == null || keys.isEmpty()) {
+			throw new IllegalArgumentException("Keyset pagination requires at least one key");
+		}
+		List<String> columns = new ArrayList<String>();
+		List<Boolean> descending = new ArrayList<Boolean>();
+		for (String key : keys) {
+			String trimmed = key.trim();
+			String lower = trimmed.toLowerCase();
+			if (lower.endsWith(" desc")) {
+				columns.add(getColumn(trimmed.substring(0, trimmed.length() - " desc".length()).trim()));
+				descending.add(true);
+			}
+			else if (lower.endsWith(" asc")) {
+				columns.add(getColumn(trimmed.substring(0, trimmed.length() - " asc".length()).trim()));
+				descending.add(false);
+			}
+			else {
+				columns.add(getColumn(trimmed));
+				descending.add(false);
+			}
+		}
+		StringBuilder builder = new StringBuilder();
+		builder.append("select ");
+		if (limit != null) {
+			builder.append("top (").append(limit).append(") ");
+		}
+		// the derived table allows us to reference the aliased columns of the original select, the optimizer pushes the predicate down so we still get a seek
+		builder.append("* from (").append(sql).append(") keyset_page");
+		List<Integer> order = new ArrayList<Integer>();
+		if (hasLastKey) {
+			builder.append(" where ");
+			// the redundant range on the first key gives the optimizer a seek predicate
+			if (columns.size() > 1) {
+				builder.append("keyset_page.").append(columns.get(0)).append(descending.get(0) ? " <= ?" : " >= ?").append(" and (");
+				order.add(0);
+			}
+			for (int i = 0; i < columns.size(); i++) {
+				if (i > 0) {
+					builder.append(" or ");
+				}
+				builder.append("(");
+				for (int j = 0; j < i; j++) {
+					builder.append("keyset_page.").append(columns.get(j)).append(" = ? and ");
+					order.add(j);
+				}
+				builder.append("keyset_page.").append(columns.get(i)).append(descending.get(i) ? " < ?" : " > ?");
+				order.add(i);
+				builder.append(")");
+			}
+			if (columns.size() > 1) {
+				builder.append(")");
+			}
+		}
+		builder.append(" order by ");
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append("keyset_page.").append(columns.get(i));
+			if (descending.get(i)) {
+				builder.append(" desc");
+			}
+		}
+		int[] parameterOrder = new int[order.size()];
+		for (int i = 0; i < order.size(); i++) {
+			parameterOrder[i] = order.get(i);
+		}
+		return new MicrosoftKeyset(builder.toString(), parameterOrder);
+	}
+
+	// strips the table qualifier, anything other than a (qualified) column can not be referenced on the derived table
+	static String getColumn(String key) {
+		int index = key.length();
+		boolean quoted = false;
+		for (int i = key.length() - 1; i >= 0; i--) {
+			char character = key.charAt(i);
+			if (character == ']' || character == '"') {
+				quoted = !quoted;
+			}
+			else if (character == '[') {
+				quoted = false;
+			}
+			else if (character == '.' && !quoted) {
+				index = i;
+				break;
+			}
+		}
+		String column = index < key.length() ? key.substring(index + 1).trim() : key;
+		if (column.isEmpty() || !column.matches("[\\w@#$]+|\\[[^\\]]+\\]|\"[^\"]+\"")) {
+			throw new IllegalArgumentException("The keyset key must be a column of the select: " + key);
+		}
+		return column;
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	int[] getParameterOrder() {
+		return parameterOrder;
+	}
+
+	/**
+	 * Expands the last seen key values (in the order of the keys) to the positional parameters of the sql
+	 */
+	public List<Object> getParameters(List<?> lastKey) {
+		List<Object> parameters = new ArrayList<Object>();
+		for (int index : parameterOrder) {
+			parameters.add(lastKey.get(index));
+		}
+		return parameters;
+	}
+}
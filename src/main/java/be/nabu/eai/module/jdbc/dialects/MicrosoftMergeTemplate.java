@@ -0,0 +1,159 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A T-SQL merge statement for a fixed table, column set and update clause:
+ *
+ * merge into table as tt
+ * 	using (values (...), (...)) as excluded(columns)
+ * 	on (tt.key = excluded.key)
+ * 	when matched then update set ...
+ * 	when not matched then insert (columns) values (excluded.columns);
+ *
+ * Only the rows in the values clause differ from one statement to the next, the rest is generated once and cached.
+ */
+public class MicrosoftMergeTemplate {
+
+	// sql server does not allow more than 2100 parameters in a single request
+	public static final int MAX_PARAMETERS = 2100;
+
+	private static final MicrosoftCache<String, MicrosoftMergeTemplate> templates = new MicrosoftCache<String, MicrosoftMergeTemplate>(Integer.parseInt(System.getProperty("mssql.merge.cache.size", "256")));
+
+	private final String prefix, suffix;
+
+	private MicrosoftMergeTemplate(String table, String tableAlias, List<String> fields, List<String> conflicts, String updateStatement) {
+		StringBuilder prefix = new StringBuilder();
+		prefix.append("merge into ")
+			.append(table)
+			.append(" as ")
+			.append(tableAlias)
+			.append("\n\tusing (values ");
+		this.prefix = prefix.toString();
+
+		StringBuilder suffix = new StringBuilder();
+		suffix.append(") as excluded(");
+		for (int i = 0; i < fields.size(); i++) {
+			if (i > 0) {
+				suffix.append(", ");
+			}
+			suffix.append(fields.get(i));
+		}
+		suffix.append(")\n\ton (");
+		for (int i = 0; i < conflicts.size(); i++) {
+			if (i > 0) {
+				suffix.append(" and ");
+			}
+			suffix.append(tableAlias)
+				.append(".")
+				.append(conflicts.get(i))
+				.append(" = excluded.")
+				.append(conflicts.get(i));
+		}
+		suffix.append(")\n\twhen matched then update set")
+			.append(updateStatement)
+			// the target columns of the insert can not be qualified in t-sql
+			.append("\n\twhen not matched then insert (");
+		for (int i = 0; i < fields.size(); i++) {
+			if (i > 0) {
+				suffix.append(", ");
+			}
+			suffix.append(fields.get(i));
+		}
+		suffix.append(") values (");
+		for (int i = 0; i < fields.size(); i++) {
+			if (i > 0) {
+				suffix.append(", ");
+			}
+			suffix.append("excluded.").append(fields.get(i));
+		}
+		// a merge must be terminated with a semicolon
+		suffix.append(");");
+		this.suffix = suffix.toString();
+	}
+
+	public static MicrosoftMergeTemplate getTemplate(String table, String tableAlias, List<String> fields, List<String> conflicts, String updateStatement) {
+		String key = table + "|" + tableAlias + "|" + fields + "|" + conflicts + "|" + updateStatement;
+		MicrosoftMergeTemplate template = templates.get(key);
+		if (template == null) {
+			template = new MicrosoftMergeTemplate(table, tableAlias, fields, conflicts, updateStatement);
+			templates.put(key, template);
+		}
+		return template;
+	}
+
+	public static MicrosoftCache<String, MicrosoftMergeTemplate> getTemplates() {
+		return templates;
+	}
+
+	/**
+	 * How many rows fit in a single statement without going over the parameter limit
+	 */
+	public static int getChunkSize(List<List<String>> values) {
+		int parameters = 0;
+		for (List<String> row : values) {
+			parameters = Math.max(parameters, getParameterCount(row));
+		}
+		return parameters == 0 ? values.size() : Math.max(1, (MAX_PARAMETERS - 1) / parameters);
+	}
+
+	public static int getParameterCount(List<String> row) {
+		int parameters = 0;
+		for (String value : row) {
+			if (value.startsWith(":") || value.equals("?")) {
+				parameters++;
+			}
+		}
+		return parameters;
+	}
+
+	public String build(List<List<String>> rows) {
+		StringBuilder result = new StringBuilder(prefix.length() + suffix.length() + (rows.size() * 16));
+		result.append(prefix);
+		for (int i = 0; i < rows.size(); i++) {
+			if (i > 0) {
+				result.append(", ");
+			}
+			result.append("(");
+			List<String> row = rows.get(i);
+			for (int j = 0; j < row.size(); j++) {
+				if (j > 0) {
+					result.append(", ");
+				}
+				result.append(row.get(j));
+			}
+			result.append(")");
+		}
+		result.append(suffix);
+		return result.toString();
+	}
+
+	/**
+	 * Splits the rows into statements that each stay under the parameter limit
+	 */
+	public List<String> build(List<List<String>> rows, int chunkSize) {
+		List<String> statements = new ArrayList<String>();
+		for (int i = 0; i < rows.size(); i += chunkSize) {
+			statements.add(build(rows.subList(i, Math.min(rows.size(), i + chunkSize))));
+		}
+		return statements;
+	}
+}
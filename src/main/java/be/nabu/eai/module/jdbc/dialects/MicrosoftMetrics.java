@@ -0,0 +1,131 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Default instrumentation that keeps counters, timers and a histogram of the output size per operation.
+ * The counters are striped (LongAdder) so concurrent updates don't contend.
+ */
+public class MicrosoftMetrics implements MicrosoftInstrumentation {
+
+	// bucket i counts outputs with a size < 2^(i + 6), the last bucket counts everything larger
+	public static final int BUCKETS = 16;
+
+	public static class OperationMetrics {
+		private final LongAdder count = new LongAdder(), nanos = new LongAdder(), outputSize = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+		private final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+		private OperationMetrics() {
+			for (int i = 0; i < BUCKETS; i++) {
+				histogram[i] = new LongAdder();
+			}
+		}
+
+		private void record(long nanos, long outputSize) {
+			count.increment();
+			this.nanos.add(nanos);
+			this.outputSize.add(outputSize);
+			maxNanos.accumulate(nanos);
+			histogram[getBucket(outputSize)].increment();
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+		public long getTotalNanos() {
+			return nanos.sum();
+		}
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+		public double getAverageNanos() {
+			long count = this.count.sum();
+			return count == 0 ? 0 : (double) nanos.sum() / count;
+		}
+		public double getAverageOutputSize() {
+			long count = this.count.sum();
+			return count == 0 ? 0 : (double) outputSize.sum() / count;
+		}
+		/**
+		 * The output size histogram keyed on the (exclusive) upper bound of each bucket, the last bucket is keyed on Long.MAX_VALUE
+		 */
+		public Map<Long, Long> getOutputSizeHistogram() {
+			Map<Long, Long> result = new LinkedHashMap<Long, Long>();
+			for (int i = 0; i < BUCKETS; i++) {
+				result.put(i == BUCKETS - 1 ? Long.MAX_VALUE : 1l << (i + 6), histogram[i].sum());
+			}
+			return result;
+		}
+		private void reset() {
+			count.reset();
+			nanos.reset();
+			outputSize.reset();
+			maxNanos.reset();
+			for (LongAdder bucket : histogram) {
+				bucket.reset();
+			}
+		}
+	}
+
+	private final Map<Operation, OperationMetrics> metrics = new EnumMap<Operation, OperationMetrics>(Operation.class);
+
+	public MicrosoftMetrics() {
+		for (Operation operation : Operation.values()) {
+			metrics.put(operation, new OperationMetrics());
+		}
+	}
+
+	static int getBucket(long size) {
+		int bucket = 64 - Long.numberOfLeadingZeros(size >>> 6);
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	@Override
+	public void record(Operation operation, long nanos, long inputSize, long outputSize) {
+		metrics.get(operation).record(nanos, outputSize);
+	}
+
+	public OperationMetrics getMetrics(Operation operation) {
+		return metrics.get(operation);
+	}
+
+	public double getRewriteCacheHitRate() {
+		return MicrosoftSQL.getRewriteCache().getHitRate();
+	}
+
+	public double getMergeTemplateCacheHitRate() {
+		return MicrosoftMergeTemplate.getTemplates().getHitRate();
+	}
+
+	public double getOrderByCacheHitRate() {
+		return MicrosoftQueryScanner.getOrderByCache().getHitRate();
+	}
+
+	public void reset() {
+		for (OperationMetrics operationMetrics : metrics.values()) {
+			operationMetrics.reset();
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of a query together with the total amount of rows, in a single round trip.
+ *
+ * If possible a "count(*) over()" column is added to the select so every row carries the total, the window is computed after the where and group by but before the offset and fetch.
+ * That does not work for distinct or set operations (union, except, intersect) so for those a second result set with the count is added to the same batch.
+ *
+ * The total can optionally be cached for a short time (mssql.total.cache.ttl in milliseconds, 0 disables it), keyed on the statement and its parameters.
+ * While the total is cached only the page itself is selected.
+ */
+public class MicrosoftPagedQuery {
+
+	public static final String TOTAL_COLUMN = "total_count";
+
+	private static volatile long ttl = Long.parseLong(System.getProperty("mssql.total.cache.ttl", "0"));
+	private static final MicrosoftCache<String, Total> totalCache = new MicrosoftCache<String, Total>(Integer.parseInt(System.getProperty("mssql.total.cache.size", "1024")));
+
+	private static class Total {
+		private final long total, expires;
+		private Total(long total, long expires) {
+			this.total = total;
+			this.expires = expires;
+		}
+	}
+
+	public static class Page {
+		private final String[] columns;
+		private final List<Object[]> rows;
+		private final long total;
+		private final boolean cached;
+
+		private Page(String[] columns, List<Object[]> rows, long total, boolean cached) {
+			this.columns = columns;
+			this.rows = rows;
+			this.total = total;
+			this.cached = cached;
+		}
+		public String[] getColumns() {
+			return columns;
+		}
+		public List<Object[]> getRows() {
+			return rows;
+		}
+		public long getTotal() {
+			return total;
+		}
+		// whether the total came from the cache
+		public boolean isCached() {
+			return cached;
+		}
+	}
+
+	private final String original, sql, pageSql, countSql;
+	private final boolean windowed;
+
+	MicrosoftPagedQuery(String original, String sql, String pageSql, String countSql, boolean windowed) {
+		this.original = original;
+		this.sql = sql;
+		this.pageSql = pageSql;
+		this.countSql = countSql;
+		this.windowed = windowed;
+	}
+
+	/**
+	 * Adds the window count to the select list, returns null if that is not possible for this query
+	 */
+	static String addWindowCount(String sql) {
+		if (hasSetOperator(sql)) {
+			return null;
+		}
+		// the window is evaluated before the distinct so it would count the duplicates as well
+		if (MicrosoftQueryScanner.findTopLevel(sql, "select", "distinct") >= 0) {
+			return null;
+		}
+		int from = getFrom(sql);
+		if (from < 0) {
+			return null;
+		}
+		return sql.substring(0, from).trim() + ", count(*) over() as " + TOTAL_COLUMN + " " + sql.substring(from);
+	}
+
+	/**
+	 * Builds the statement that counts the rows of the query (without order by or option clause).
+	 * The query is counted as a derived table with renamed columns so unnamed expressions (e.g. "count(*)") or duplicate names (e.g. from a join) don't break it.
+	 * That needs the amount of columns, so if the select list contains a "*" and the rows map one on one to the from clause, the select list is replaced with count(*) instead.
+	 */
+	static String buildCount(String sql) {
+		int select = MicrosoftQueryScanner.findFirstTopLevel(sql, 0, "select");
+		int from = getFrom(sql);
+		if (select < 0 || from < 0) {
+			return "select count(*) from (" + sql + ") total_query";
+		}
+		// common table expressions can not be part of a derived table, they stay in front
+		String prefix = sql.substring(0, select);
+		String selectList = sql.substring(select + "select".length(), from);
+		// count(*) in the select list is a single column
+		if (selectList.replaceAll("(?i)count\\s*\\(\\s*\\*\\s*\\)", "").indexOf('*') < 0) {
+			int columns = MicrosoftQueryScanner.countTopLevel(sql, select, from, ',') + 1;
+			StringBuilder builder = new StringBuilder(prefix).append("select count(*) from (").append(sql.substring(select)).append(") total_query (");
+			for (int i = 1; i <= columns; i++) {
+				if (i > 1) {
+					builder.append(", ");
+				}
+				builder.append("total_column_").append(i);
+			}
+			return builder.append(")").toString();
+		}
+		boolean oneOnOne = !hasSetOperator(sql)
+			&& MicrosoftQueryScanner.findTopLevel(sql, "select", "distinct") < 0
+			&& MicrosoftQueryScanner.findTopLevel(sql, "select", "top") < 0
+			&& MicrosoftQueryScanner.findTopLevel(sql, "group", "by") < 0
+			&& MicrosoftQueryScanner.findTopLevel(sql, "having") < 0;
+		if (oneOnOne) {
+			return prefix + "select count(*) " + sql.substring(from);
+		}
+		return prefix + "select count(*) from (" + sql.substring(select) + ") total_query";
+	}
+
+	private static boolean hasSetOperator(String sql) {
+		return MicrosoftQueryScanner.findTopLevel(sql, "union") >= 0 || MicrosoftQueryScanner.findTopLevel(sql, "except") >= 0 || MicrosoftQueryScanner.findTopLevel(sql, "intersect") >= 0;
+	}
+
+	// the from of the top level select (not of a common table expression or a later set operation)
+	private static int getFrom(String sql) {
+		int select = MicrosoftQueryScanner.findFirstTopLevel(sql, 0, "select");
+		return select < 0 ? -1 : MicrosoftQueryScanner.findFirstTopLevel(sql, select, "from");
+	}
+
+	/**
+	 * The statement to run when the total is not cached
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	/**
+	 * The statement that only selects the page
+	 */
+	public String getPageSql() {
+		return pageSql;
+	}
+
+	/**
+	 * The statement that only selects the total
+	 */
+	public String getCountSql() {
+		return countSql;
+	}
+
+	/**
+	 * Whether the total is a column in the page (true) or a second result set (false)
+	 */
+	public boolean isWindowed() {
+		return windowed;
+	}
+
+	/**
+	 * The parameters for getSql(), if the count is a second result set in the batch the parameters appear twice
+	 */
+	public List<Object> getParameters(List<?> parameters) {
+		List<Object> result = new ArrayList<Object>();
+		if (parameters != null) {
+			result.addAll(parameters);
+			if (!windowed) {
+				result.addAll(parameters);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param parameters the positional parameters of the original query, can be null
+	 */
+	public Page execute(Connection connection, List<?> parameters) throws SQLException {
+		String key = original + "\u0000" + parameters;
+		long ttl = MicrosoftPagedQuery.ttl;
+		if (ttl > 0) {
+			Total cached = totalCache.get(key);
+			if (cached != null && cached.expires > System.currentTimeMillis()) {
+				PreparedStatement statement = prepare(connection, pageSql, parameters);
+				try {
+					List<Object[]> rows = new ArrayList<Object[]>();
+					String[] columns = read(statement.executeQuery(), rows, false);
+					return new Page(columns, rows, cached.total, true);
+				}
+				finally {
+					statement.close();
+				}
+			}
+		}
+		Long total = null;
+		List<Object[]> rows = new ArrayList<Object[]>();
+		String[] columns;
+		PreparedStatement statement = prepare(connection, sql, getParameters(parameters));
+		try {
+			statement.execute();
+			ResultSet result = statement.getResultSet();
+			columns = read(result, rows, windowed);
+			if (windowed) {
+				if (!rows.isEmpty()) {
+					total = ((Number) rows.get(0)[columns.length]).longValue();
+					// strip the total column from the rows
+					for (int i = 0; i < rows.size(); i++) {
+						Object[] row = new Object[columns.length];
+						System.arraycopy(rows.get(i), 0, row, 0, columns.length);
+						rows.set(i, row);
+					}
+				}
+			}
+			else if (statement.getMoreResults()) {
+				ResultSet count = statement.getResultSet();
+				try {
+					if (count.next()) {
+						total = count.getLong(1);
+					}
+				}
+				finally {
+					count.close();
+				}
+			}
+		}
+		finally {
+			statement.close();
+		}
+		// an empty page (e.g. an offset beyond the end) has no rows to carry the total
+		if (total == null) {
+			total = count(connection, parameters);
+		}
+		if (ttl > 0) {
+			totalCache.put(key, new Total(total, System.currentTimeMillis() + ttl));
+		}
+		return new Page(columns, rows, total, false);
+	}
+
+	private long count(Connection connection, List<?> parameters) throws SQLException {
+		PreparedStatement statement = prepare(connection, countSql, parameters);
+		try {
+			ResultSet result = statement.executeQuery();
+			try {
+				return result.next() ? result.getLong(1) : 0;
+			}
+			finally {
+				result.close();
+			}
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	private static PreparedStatement prepare(Connection connection, String sql, List<?> parameters) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			if (parameters != null) {
+				for (int i = 0; i < parameters.size(); i++) {
+					MicrosoftSQL.bind(statement, i + 1, parameters.get(i));
+				}
+			}
+			return statement;
+		}
+		catch (SQLException e) {
+			statement.close();
+			throw e;
+		}
+	}
+
+	// reads all the rows, if the last column is the total, it is not part of the returned columns but it is kept in the rows
+	private static String[] read(ResultSet result, List<Object[]> rows, boolean withTotal) throws SQLException {
+		try {
+			ResultSetMetaData metaData = result.getMetaData();
+			int count = metaData.getColumnCount();
+			String[] columns = new String[withTotal ? count - 1 : count];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = metaData.getColumnLabel(i + 1);
+			}
+			while (result.next()) {
+				Object[] row = new Object[count];
+				for (int i = 0; i < count; i++) {
+					row[i] = result.getObject(i + 1);
+				}
+				rows.add(row);
+			}
+			return columns;
+		}
+		finally {
+			result.close();
+		}
+	}
+
+	public static long getTtl() {
+		return ttl;
+	}
+
+	public static void setTtl(long ttl) {
+		MicrosoftPagedQuery.ttl = ttl;
+		if (ttl <= 0) {
+			totalCache.clear();
+		}
+	}
+
+	public static MicrosoftCache<String, ?> getTotalCache() {
+		return totalCache;
+	}
+}
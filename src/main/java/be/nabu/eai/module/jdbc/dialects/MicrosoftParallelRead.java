@@ -0,0 +1,369 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+/**
+ * Reads a large result in parallel: the key distribution is sampled with ntile() to split the query into non-overlapping key ranges
+ * which are streamed concurrently on separate connections (see MicrosoftStreamingQuery) and merged into a single stream.
+ *
+ * If the result is ordered, the partitions are returned one after the other, each sorted on the key, so the result is sorted on the key as a whole.
+ * Otherwise rows are returned as soon as any partition produces them.
+ * The key should be the (leading) clustered key column, it must be selected by the query and it must not be null.
+ * Each partition buffers at most mssql.parallel.buffer rows (default 1000) so a slow consumer does not make us run out of memory.
+ * The partitions run on daemon threads so an unclosed read can not keep the jvm alive, but it should always be closed (try-with-resources) to release the connections.
+ * If any partition fails, all the others are cancelled and their connections are closed.
+ */
+public class MicrosoftParallelRead implements Iterator<Object[]>, AutoCloseable {
+
+	private static final Object[] END = new Object[0];
+
+	public static class Partition {
+		private final int index;
+		private final Object lower, upper;
+		private final AtomicLong rows = new AtomicLong();
+		private volatile long started, stopped;
+		private volatile Throwable error;
+		// the running query, so it can be cancelled from another thread
+		private volatile MicrosoftStreamingQuery query;
+
+		private Partition(int index, Object lower, Object upper) {
+			this.index = index;
+			this.lower = lower;
+			this.upper = upper;
+		}
+		public int getIndex() {
+			return index;
+		}
+		// exclusive, null for the first partition
+		public Object getLower() {
+			return lower;
+		}
+		// inclusive, null for the last partition
+		public Object getUpper() {
+			return upper;
+		}
+		public long getRows() {
+			return rows.get();
+		}
+		public boolean isStarted() {
+			return started > 0;
+		}
+		public boolean isDone() {
+			return stopped > 0;
+		}
+		public Throwable getError() {
+			return error;
+		}
+		public double getRowsPerSecond() {
+			if (started == 0) {
+				return 0;
+			}
+			long elapsed = (stopped > 0 ? stopped : System.nanoTime()) - started;
+			return elapsed == 0 ? 0 : rows.get() / (elapsed / 1000000000d);
+		}
+	}
+
+	private final List<Partition> partitions;
+	private final List<BlockingQueue<Object[]>> queues;
+	private final ExecutorService executor;
+	private final boolean ordered;
+	private volatile boolean closed;
+	private int current, finished;
+	private Object[] next;
+
+	private MicrosoftParallelRead(List<Partition> partitions, boolean ordered, int parallelism) {
+		this.partitions = partitions;
+		this.ordered = ordered;
+		int buffer = Integer.parseInt(System.getProperty("mssql.parallel.buffer", "1000"));
+		this.queues = new ArrayList<BlockingQueue<Object[]>>();
+		// unordered partitions share a single queue
+		for (int i = 0; i < (ordered ? partitions.size() : 1); i++) {
+			queues.add(new ArrayBlockingQueue<Object[]>(ordered ? buffer : buffer * Math.min(parallelism, partitions.size())));
+		}
+		this.executor = Executors.newFixedThreadPool(Math.min(parallelism, partitions.size()), new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "mssql-parallel-read-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @param sql the query, any top level order by is replaced by the key
+	 * @param parameters the positional parameters of the query, can be null
+	 * @param key the column to partition on
+	 * @param partitions the (maximum) amount of key ranges
+	 * @param parallelism the amount of ranges that are read at the same time, each on its own connection
+	 * @param ordered whether the result should be sorted on the key
+	 */
+	public static MicrosoftParallelRead open(final DataSource dataSource, String sql, final List<?> parameters, String key, int partitions, int parallelism, boolean ordered) throws SQLException {
+		if (partitions < 1 || parallelism < 1) {
+			throw new IllegalArgumentException("The amount of partitions and the parallelism must be at least 1");
+		}
+		String option = "";
+		int optionIndex = MicrosoftQueryScanner.getTopLevelOption(sql);
+		if (optionIndex >= 0) {
+			option = " " + sql.substring(optionIndex);
+			sql = sql.substring(0, optionIndex).trim();
+		}
+		int orderBy = MicrosoftQueryScanner.getTopLevelOrderBy(sql);
+		if (orderBy >= 0) {
+			sql = sql.substring(0, orderBy).trim();
+		}
+		List<Object> boundaries = sample(dataSource, sql, option, parameters, key, partitions);
+		List<Partition> list = new ArrayList<Partition>();
+		for (int i = 0; i <= boundaries.size(); i++) {
+			list.add(new Partition(i, i == 0 ? null : boundaries.get(i - 1), i == boundaries.size() ? null : boundaries.get(i)));
+		}
+		final MicrosoftParallelRead read = new MicrosoftParallelRead(Collections.unmodifiableList(list), ordered, parallelism);
+		for (final Partition partition : list) {
+			final String partitionSql = "select * from (" + sql + ") partition_page"
+				+ (partition.lower == null ? "" : " where " + key + " > ?")
+				+ (partition.upper == null ? "" : (partition.lower == null ? " where " : " and ") + key + " <= ?")
+				+ (ordered ? " order by " + key : "")
+				+ option;
+			read.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					read.produce(dataSource, partition, partitionSql, parameters);
+				}
+			});
+		}
+		read.executor.shutdown();
+		return read;
+	}
+
+	// the upper boundaries of all but the last tile
+	private static List<Object> sample(DataSource dataSource, String sql, String option, List<?> parameters, String key, int partitions) throws SQLException {
+		List<Object> boundaries = new ArrayList<Object>();
+		if (partitions == 1) {
+			return boundaries;
+		}
+		Connection connection = dataSource.getConnection();
+		try {
+			// only the key is needed so the server can use the narrowest index on it
+			PreparedStatement statement = connection.prepareStatement("select max(partition_key) from (select partition_key, ntile(" + partitions + ") over (order by partition_key) partition_tile from (select " + key
+				+ " partition_key from (" + sql + ") partition_source) partition_keys) partition_tiles group by partition_tile order by partition_tile" + option);
+			try {
+				bind(statement, parameters);
+				ResultSet result = statement.executeQuery();
+				try {
+					while (result.next()) {
+						Object boundary = result.getObject(1);
+						// with few distinct keys several tiles can end on the same key
+						if (boundary != null && (boundaries.isEmpty() || !boundaries.get(boundaries.size() - 1).equals(boundary))) {
+							boundaries.add(boundary);
+						}
+					}
+				}
+				finally {
+					result.close();
+				}
+			}
+			finally {
+				statement.close();
+			}
+		}
+		finally {
+			connection.close();
+		}
+		// the last tile ends on the maximum, the last partition has no upper bound
+		if (!boundaries.isEmpty()) {
+			boundaries.remove(boundaries.size() - 1);
+		}
+		return boundaries;
+	}
+
+	private static int bind(PreparedStatement statement, List<?> parameters) throws SQLException {
+		int index = 1;
+		if (parameters != null) {
+			for (Object parameter : parameters) {
+				MicrosoftSQL.bind(statement, index++, parameter);
+			}
+		}
+		return index;
+	}
+
+	private void produce(DataSource dataSource, Partition partition, String sql, List<?> parameters) {
+		BlockingQueue<Object[]> queue = queues.get(ordered ? partition.index : 0);
+		partition.started = System.nanoTime();
+		try {
+			if (closed) {
+				return;
+			}
+			List<Object> all = new ArrayList<Object>();
+			if (parameters != null) {
+				all.addAll(parameters);
+			}
+			if (partition.lower != null) {
+				all.add(partition.lower);
+			}
+			if (partition.upper != null) {
+				all.add(partition.upper);
+			}
+			Connection connection = dataSource.getConnection();
+			try {
+				MicrosoftStreamingQuery query = MicrosoftStreamingQuery.open(connection, sql, all, null, false);
+				partition.query = query;
+				try {
+					while (!closed && query.hasNext()) {
+						if (put(queue, query.next())) {
+							partition.rows.incrementAndGet();
+						}
+					}
+				}
+				finally {
+					partition.query = null;
+					query.close();
+				}
+			}
+			finally {
+				connection.close();
+			}
+		}
+		catch (Throwable e) {
+			// once we are closed, the other partitions fail because they are cancelled, only the original failure matters
+			if (!closed) {
+				partition.error = e;
+				close();
+			}
+		}
+		finally {
+			partition.stopped = System.nanoTime();
+			put(queue, END);
+		}
+	}
+
+	// waits for room in the queue unless we are closed
+	private boolean put(BlockingQueue<Object[]> queue, Object[] row) {
+		try {
+			while (!closed) {
+				if (queue.offer(row, 100, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (next == null && !closed && finished < partitions.size()) {
+			Object[] row;
+			try {
+				// poll so we notice when a failing partition closes the read
+				row = queues.get(ordered ? current : 0).poll(100, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			if (row == null) {
+				continue;
+			}
+			if (row == END) {
+				finished++;
+				if (ordered) {
+					current++;
+				}
+			}
+			else {
+				next = row;
+			}
+		}
+		if (next == null) {
+			for (Partition partition : partitions) {
+				if (partition.error != null) {
+					throw new RuntimeException("Partition " + partition.index + " failed", partition.error);
+				}
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public Object[] next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Object[] row = next;
+		next = null;
+		return row;
+	}
+
+	public List<Partition> getPartitions() {
+		return partitions;
+	}
+
+	public long getRows() {
+		long rows = 0;
+		for (Partition partition : partitions) {
+			rows += partition.getRows();
+		}
+		return rows;
+	}
+
+	/**
+	 * Stops all the partitions that are still running, their statements are cancelled
+	 */
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			executor.shutdownNow();
+			// a partition that is waiting on the server only stops when its statement is cancelled, it then closes its own connection
+			for (Partition partition : partitions) {
+				MicrosoftStreamingQuery query = partition.query;
+				if (query != null) {
+					try {
+						query.cancel();
+					}
+					catch (Exception e) {
+						// the partition is stopping anyway
+					}
+				}
+			}
+		}
+	}
+}
@@ -20,11 +20,13 @@ package be.nabu.eai.module.jdbc.dialects;
 import be.nabu.libs.types.api.annotation.ComplexTypeDescriptor;
 import be.nabu.libs.types.api.annotation.Field;
 
-@ComplexTypeDescriptor(propOrder = { "host", "port","database", "username", "password" })
+@ComplexTypeDescriptor(propOrder = { "host", "port","database", "username", "password", "readIntent", "performance" })
 public class MicrosoftParameters {
 	private String host, database;
 	private Integer port;
 	private String username, password;
+	private MicrosoftPerformanceParameters performance;
+	private Boolean readIntent;
 	
 	@Field(defaultValue = "localhost")
 	public String getHost() {
@@ -63,4 +65,19 @@ public class MicrosoftParameters {
 		this.database = database;
 	}
 	
+	// connect with ApplicationIntent=ReadOnly so an availability group listener routes us to a readable secondary
+	public Boolean getReadIntent() {
+		return readIntent;
+	}
+	public void setReadIntent(Boolean readIntent) {
+		this.readIntent = readIntent;
+	}
+	
+	public MicrosoftPerformanceParameters getPerformance() {
+		return performance;
+	}
+	public void setPerformance(MicrosoftPerformanceParameters performance) {
+		this.performance = performance;
+	}
+	
 }
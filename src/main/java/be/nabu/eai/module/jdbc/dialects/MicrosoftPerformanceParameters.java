@@ -0,0 +1,131 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import be.nabu.libs.types.api.annotation.ComplexTypeDescriptor;
+
+/**
+ * Driver settings that influence the performance of the connection, they end up as properties in the jdbc url.
+ * A profile fills in sensible defaults, any value that is set explicitly wins over the profile.
+ */
+@ComplexTypeDescriptor(propOrder = { "profile", "packetSize", "responseBuffering", "selectMethod", "sendStringParametersAsUnicode", "multiSubnetFailover", "applicationName" })
+public class MicrosoftPerformanceParameters {
+
+	public enum Profile {
+		// small packets and fast failover
+		// strings are still sent as unicode (the driver default): sending them as varchar loses data in nvarchar columns, only turn it off explicitly if all string columns are varchar
+		OLTP_LOW_LATENCY(8000, ResponseBuffering.ADAPTIVE, SelectMethod.DIRECT, true, true),
+		// the largest packets for throughput
+		BULK_ETL_THROUGHPUT(32767, ResponseBuffering.ADAPTIVE, SelectMethod.DIRECT, true, false);
+
+		private final int packetSize;
+		private final ResponseBuffering responseBuffering;
+		private final SelectMethod selectMethod;
+		private final boolean sendStringParametersAsUnicode, multiSubnetFailover;
+
+		private Profile(int packetSize, ResponseBuffering responseBuffering, SelectMethod selectMethod, boolean sendStringParametersAsUnicode, boolean multiSubnetFailover) {
+			this.packetSize = packetSize;
+			this.responseBuffering = responseBuffering;
+			this.selectMethod = selectMethod;
+			this.sendStringParametersAsUnicode = sendStringParametersAsUnicode;
+			this.multiSubnetFailover = multiSubnetFailover;
+		}
+		public int getPacketSize() {
+			return packetSize;
+		}
+		public ResponseBuffering getResponseBuffering() {
+			return responseBuffering;
+		}
+		public SelectMethod getSelectMethod() {
+			return selectMethod;
+		}
+		public boolean isSendStringParametersAsUnicode() {
+			return sendStringParametersAsUnicode;
+		}
+		public boolean isMultiSubnetFailover() {
+			return multiSubnetFailover;
+		}
+	}
+
+	public enum ResponseBuffering {
+		ADAPTIVE, FULL
+	}
+
+	public enum SelectMethod {
+		DIRECT, CURSOR
+	}
+
+	private Profile profile;
+	private Integer packetSize;
+	private ResponseBuffering responseBuffering;
+	private SelectMethod selectMethod;
+	private Boolean sendStringParametersAsUnicode, multiSubnetFailover;
+	private String applicationName;
+
+	public Profile getProfile() {
+		return profile;
+	}
+	public void setProfile(Profile profile) {
+		this.profile = profile;
+	}
+
+	// the network packet size in bytes (512-32767), the driver default is 8000
+	public Integer getPacketSize() {
+		return packetSize;
+	}
+	public void setPacketSize(Integer packetSize) {
+		this.packetSize = packetSize;
+	}
+
+	public ResponseBuffering getResponseBuffering() {
+		return responseBuffering;
+	}
+	public void setResponseBuffering(ResponseBuffering responseBuffering) {
+		this.responseBuffering = responseBuffering;
+	}
+
+	public SelectMethod getSelectMethod() {
+		return selectMethod;
+	}
+	public void setSelectMethod(SelectMethod selectMethod) {
+		this.selectMethod = selectMethod;
+	}
+
+	// if true (the driver default) all string parameters are sent as nvarchar which prevents index seeks on varchar columns
+	public Boolean getSendStringParametersAsUnicode() {
+		return sendStringParametersAsUnicode;
+	}
+	public void setSendStringParametersAsUnicode(Boolean sendStringParametersAsUnicode) {
+		this.sendStringParametersAsUnicode = sendStringParametersAsUnicode;
+	}
+
+	public Boolean getMultiSubnetFailover() {
+		return multiSubnetFailover;
+	}
+	public void setMultiSubnetFailover(Boolean multiSubnetFailover) {
+		this.multiSubnetFailover = multiSubnetFailover;
+	}
+
+	// the name that shows up in the server side tracing
+	public String getApplicationName() {
+		return applicationName;
+	}
+	public void setApplicationName(String applicationName) {
+		this.applicationName = applicationName;
+	}
+}
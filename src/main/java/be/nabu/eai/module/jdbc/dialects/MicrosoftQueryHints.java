@@ -0,0 +1,207 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * Query hints (OPTION (...)) that are added to statements to fight parameter sniffing, e.g. RECOMPILE, OPTIMIZE FOR UNKNOWN, MAXDOP 4 or USE HINT('DISABLE_PARAMETER_SNIFFING').
+ *
+ * Hints come from a central rule table, matched on the fingerprint of a statement (literals and parameters replaced with "?", whitespace collapsed, lowercased) or on a regex,
+ * or from a property called "queryHints" on the input type of the service.
+ */
+public class MicrosoftQueryHints {
+
+	// the name of the type property that can hold hints, multiple hints are separated by ";"
+	public static final String PROPERTY = "queryHints";
+
+	private static final Map<String, String> fingerprintRules = new ConcurrentHashMap<String, String>();
+	private static final List<RegexRule> regexRules = new CopyOnWriteArrayList<RegexRule>();
+
+	private static class RegexRule {
+		private final Pattern pattern;
+		private final String hints;
+		private RegexRule(Pattern pattern, String hints) {
+			this.pattern = pattern;
+			this.hints = hints;
+		}
+	}
+
+	/**
+	 * Adds hints for all statements with the same fingerprint as the given sql
+	 */
+	public static void addRule(String sql, String...hints) {
+		fingerprintRules.put(fingerprint(sql), join(hints));
+		// the rewritten statements are cached
+		MicrosoftSQL.getRewriteCache().clear();
+	}
+
+	/**
+	 * Adds hints for all statements whose fingerprint matches the regex
+	 */
+	public static void addRegexRule(String regex, String...hints) {
+		regexRules.add(new RegexRule(Pattern.compile(regex), join(hints)));
+		MicrosoftSQL.getRewriteCache().clear();
+	}
+
+	public static void clearRules() {
+		fingerprintRules.clear();
+		regexRules.clear();
+		MicrosoftSQL.getRewriteCache().clear();
+	}
+
+	private static String join(String...hints) {
+		StringBuilder builder = new StringBuilder();
+		for (String hint : hints) {
+			if (hint != null && !hint.trim().isEmpty()) {
+				if (builder.length() > 0) {
+					builder.append(", ");
+				}
+				builder.append(hint.trim());
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * The hints of the matching rules or null if no rule matches, this is only called when the rewrite is not cached yet
+	 */
+	static String getRuleHints(String sql) {
+		if (fingerprintRules.isEmpty() && regexRules.isEmpty()) {
+			return null;
+		}
+		String fingerprint = fingerprint(sql);
+		List<String> hints = new ArrayList<String>();
+		String exact = fingerprintRules.get(fingerprint);
+		if (exact != null) {
+			hints.add(exact);
+		}
+		for (RegexRule rule : regexRules) {
+			if (rule.pattern.matcher(fingerprint).find()) {
+				hints.add(rule.hints);
+			}
+		}
+		return hints.isEmpty() ? null : join(hints.toArray(new String[hints.size()]));
+	}
+
+	/**
+	 * The hints set as a property on the type (if any)
+	 */
+	static String getTypeHints(ComplexType type) {
+		if (type == null) {
+			return null;
+		}
+		String hints = MicrosoftTableOptions.getProperty(type.getProperties(), PROPERTY);
+		return hints == null ? null : join(hints.split(";"));
+	}
+
+	/**
+	 * A normalized version of the statement: lowercase, whitespace and comments collapsed, string and numeric literals and parameters replaced with "?"
+	 */
+	public static String fingerprint(String sql) {
+		StringBuilder builder = new StringBuilder(sql.length());
+		int length = sql.length();
+		int i = 0;
+		boolean space = false;
+		while (i < length) {
+			char character = sql.charAt(i);
+			int skipped = MicrosoftQueryScanner.skip(sql, i);
+			if (skipped > i) {
+				// literals become parameters, quoted identifiers are kept, comments become whitespace
+				if (character == '\'') {
+					appendSpace(builder, space);
+					builder.append('?');
+					space = false;
+				}
+				else if (character == '"' || character == '[') {
+					appendSpace(builder, space);
+					builder.append(sql.substring(i, skipped).toLowerCase());
+					space = false;
+				}
+				else {
+					space = true;
+				}
+				i = skipped;
+			}
+			else if (Character.isWhitespace(character)) {
+				space = true;
+				i++;
+			}
+			// named parameters
+			else if (character == ':' && i + 1 < length && Character.isJavaIdentifierStart(sql.charAt(i + 1))) {
+				appendSpace(builder, space);
+				builder.append('?');
+				space = false;
+				i++;
+				while (i < length && Character.isJavaIdentifierPart(sql.charAt(i))) {
+					i++;
+				}
+			}
+			// numbers that are not part of an identifier
+			else if (Character.isDigit(character) && (i == 0 || !Character.isJavaIdentifierPart(sql.charAt(i - 1)))) {
+				appendSpace(builder, space);
+				builder.append('?');
+				space = false;
+				while (i < length && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+					i++;
+				}
+			}
+			else {
+				appendSpace(builder, space);
+				builder.append(Character.toLowerCase(character));
+				space = false;
+				i++;
+			}
+		}
+		return builder.toString();
+	}
+
+	private static void appendSpace(StringBuilder builder, boolean space) {
+		if (space && builder.length() > 0) {
+			builder.append(' ');
+		}
+	}
+
+	/**
+	 * Adds the hints to the statement. If the statement already has an option clause, the hints are added to it.
+	 * The option clause has to be the very last clause of a statement, but before the terminating semicolon.
+	 */
+	public static String apply(String sql, String hints) {
+		if (hints == null || hints.isEmpty()) {
+			return sql;
+		}
+		String trimmed = sql.trim();
+		String terminator = "";
+		if (trimmed.endsWith(";")) {
+			trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+			terminator = ";";
+		}
+		int option = MicrosoftQueryScanner.getTopLevelOption(trimmed);
+		if (option >= 0 && trimmed.endsWith(")")) {
+			return trimmed.substring(0, trimmed.length() - 1) + ", " + hints + ")" + terminator;
+		}
+		return trimmed + " OPTION (" + hints + ")" + terminator;
+	}
+}
@@ -0,0 +1,306 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A single pass scanner over a sql statement that keeps track of the nesting depth and skips string literals, quoted identifiers and comments.
+ * Finding keywords does not allocate anything while scanning.
+ */
+public class MicrosoftQueryScanner {
+
+	// the position of the top level order by (or -1 if there is none) only depends on the sql
+	private static final MicrosoftCache<String, Integer> orderByCache = new MicrosoftCache<String, Integer>(Integer.parseInt(System.getProperty("mssql.orderBy.cache.size", "1024")));
+
+	/**
+	 * Returns the position of the last "order by" that is not nested in brackets, a literal or a comment, or -1 if there is none
+	 */
+	public static int getTopLevelOrderBy(String sql) {
+		Integer position = orderByCache.get(sql);
+		if (position == null) {
+			position = findTopLevel(sql, "order", "by");
+			orderByCache.put(sql, position);
+		}
+		return position;
+	}
+
+	/**
+	 * Returns the position of a top level "option" clause (query hints) or -1 if there is none
+	 */
+	public static int getTopLevelOption(String sql) {
+		Integer position = optionCache.get(sql);
+		if (position == null) {
+			position = findTopLevel(sql, "option");
+			// make sure it is actually followed by the hints
+			if (position >= 0 && sql.indexOf('(', position) < 0) {
+				position = -1;
+			}
+			optionCache.put(sql, position);
+		}
+		return position;
+	}
+
+	// shares the size setting with the order by cache
+	private static final MicrosoftCache<String, Integer> optionCache = new MicrosoftCache<String, Integer>(Integer.parseInt(System.getProperty("mssql.orderBy.cache.size", "1024")));
+
+	// any of these words (outside of literals and comments) means the statement might write or has side effects
+	private static final Set<String> WRITES = new HashSet<String>(Arrays.asList("insert", "update", "delete", "merge", "into", "exec", "execute", "truncate", "drop", "alter", "create", "grant", "revoke", "deny", "updlock", "xlock", "holdlock", "openquery", "openrowset", "begin", "commit", "rollback", "save", "waitfor", "bulk", "dbcc", "kill", "use", "set", "declare"));
+
+	private static final MicrosoftCache<String, Boolean> readOnlyCache = new MicrosoftCache<String, Boolean>(Integer.parseInt(System.getProperty("mssql.readOnly.cache.size", "1024")));
+
+	/**
+	 * A statement is read-only if it starts with "select" or "with" and does not contain any word that could write anywhere in it.
+	 * This is conservative: a column that happens to be called "update" makes the statement not read-only.
+	 */
+	public static boolean isReadOnly(String sql) {
+		Boolean readOnly = readOnlyCache.get(sql);
+		if (readOnly == null) {
+			readOnly = checkReadOnly(sql);
+			readOnlyCache.put(sql, readOnly);
+		}
+		return readOnly;
+	}
+
+	private static boolean checkReadOnly(String sql) {
+		int length = sql.length();
+		boolean first = true;
+		int i = 0;
+		while (i < length) {
+			char character = sql.charAt(i);
+			int skipped = skip(sql, i);
+			if (skipped > i) {
+				i = skipped;
+			}
+			else if (Character.isLetter(character) || character == '_' || character == '@' || character == '#') {
+				int end = wordEnd(sql, i);
+				String word = sql.substring(i, end).toLowerCase();
+				if (first) {
+					if (!word.equals("select") && !word.equals("with")) {
+						return false;
+					}
+					first = false;
+				}
+				else if (WRITES.contains(word)) {
+					return false;
+				}
+				// "next value for" draws from a sequence, "fetch next" (as generated by limit()) is a plain read
+				else if (word.equals("next") && matches(sql, i, end, "next", "value", "for") >= 0) {
+					return false;
+				}
+				i = end;
+			}
+			else if (first && !Character.isWhitespace(character) && character != '(') {
+				return false;
+			}
+			else {
+				i++;
+			}
+		}
+		return !first;
+	}
+
+	public static MicrosoftCache<String, Integer> getOrderByCache() {
+		return orderByCache;
+	}
+
+	public static MicrosoftCache<String, Integer> getOptionCache() {
+		return optionCache;
+	}
+
+	public static MicrosoftCache<String, Boolean> getReadOnlyCache() {
+		return readOnlyCache;
+	}
+
+	/**
+	 * Finds the last top level occurrence of the given keyword(s), multiple keywords can be separated by any whitespace or comment
+	 */
+	public static int findTopLevel(String sql, String...keywords) {
+		return find(sql, 0, false, keywords);
+	}
+
+	/**
+	 * Finds the first top level occurrence of the given keyword(s) at or after the start, which must itself be at the top level
+	 */
+	public static int findFirstTopLevel(String sql, int start, String...keywords) {
+		return find(sql, start, true, keywords);
+	}
+
+	/**
+	 * Counts the top level occurrences of the character between start and end, e.g. the commas in a select list
+	 */
+	public static int countTopLevel(String sql, int start, int end, char counted) {
+		int depth = 0;
+		int count = 0;
+		int i = start;
+		while (i < end) {
+			char character = sql.charAt(i);
+			int skipped = skip(sql, i);
+			if (skipped > i) {
+				i = skipped;
+				continue;
+			}
+			else if (character == '(') {
+				depth++;
+			}
+			else if (character == ')') {
+				depth--;
+			}
+			else if (character == counted && depth == 0) {
+				count++;
+			}
+			i++;
+		}
+		return count;
+	}
+
+	private static int find(String sql, int start, boolean first, String...keywords) {
+		int length = sql.length();
+		int depth = 0;
+		int found = -1;
+		int i = start;
+		while (i < length) {
+			char character = sql.charAt(i);
+			int skipped = skip(sql, i);
+			if (skipped > i) {
+				i = skipped;
+			}
+			else if (character == '(') {
+				depth++;
+				i++;
+			}
+			else if (character == ')') {
+				depth--;
+				i++;
+			}
+			else if (Character.isLetter(character) || character == '_' || character == '@' || character == '#') {
+				int end = wordEnd(sql, i);
+				if (depth == 0 && (i == 0 || !isWordCharacter(sql.charAt(i - 1)))) {
+					int matched = matches(sql, i, end, keywords);
+					if (matched >= 0) {
+						if (first) {
+							return i;
+						}
+						found = i;
+					}
+				}
+				i = end;
+			}
+			else {
+				i++;
+			}
+		}
+		return found;
+	}
+
+	// checks whether the keywords start at the given word, returns the end of the last keyword or -1
+	private static int matches(String sql, int start, int end, String...keywords) {
+		for (int k = 0; k < keywords.length; k++) {
+			if (k > 0) {
+				start = skipWhitespace(sql, end);
+				if (start >= sql.length()) {
+					return -1;
+				}
+				end = wordEnd(sql, start);
+			}
+			String keyword = keywords[k];
+			if (end - start != keyword.length() || !sql.regionMatches(true, start, keyword, 0, keyword.length())) {
+				return -1;
+			}
+		}
+		return end;
+	}
+
+	private static int skipWhitespace(String sql, int i) {
+		while (i < sql.length()) {
+			int skipped = skip(sql, i);
+			// string literals are not whitespace
+			if (skipped > i && sql.charAt(i) != '\'' && sql.charAt(i) != '"' && sql.charAt(i) != '[') {
+				i = skipped;
+			}
+			else if (Character.isWhitespace(sql.charAt(i))) {
+				i++;
+			}
+			else {
+				break;
+			}
+		}
+		return i;
+	}
+
+	private static int wordEnd(String sql, int i) {
+		while (i < sql.length() && isWordCharacter(sql.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isWordCharacter(char character) {
+		return Character.isLetterOrDigit(character) || character == '_' || character == '@' || character == '#' || character == '$';
+	}
+
+	/**
+	 * If a literal, quoted identifier or comment starts at the given position, returns the position right after it, otherwise returns the position itself
+	 */
+	static int skip(String sql, int i) {
+		int length = sql.length();
+		char character = sql.charAt(i);
+		// string literals, quoted identifiers: quotes are escaped by doubling them
+		if (character == '\'' || character == '"' || character == '[') {
+			char close = character == '[' ? ']' : character;
+			int j = i + 1;
+			while (j < length) {
+				if (sql.charAt(j) == close) {
+					if (j + 1 < length && sql.charAt(j + 1) == close) {
+						j += 2;
+						continue;
+					}
+					return j + 1;
+				}
+				j++;
+			}
+			return length;
+		}
+		else if (character == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+			int end = sql.indexOf('\n', i);
+			return end < 0 ? length : end + 1;
+		}
+		// block comments can be nested in t-sql
+		else if (character == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+			int depth = 1;
+			int j = i + 2;
+			while (j < length && depth > 0) {
+				if (sql.charAt(j) == '/' && j + 1 < length && sql.charAt(j + 1) == '*') {
+					depth++;
+					j += 2;
+				}
+				else if (sql.charAt(j) == '*' && j + 1 < length && sql.charAt(j + 1) == '/') {
+					depth--;
+					j += 2;
+				}
+				else {
+					j++;
+				}
+			}
+			return j;
+		}
+		return i;
+	}
+}
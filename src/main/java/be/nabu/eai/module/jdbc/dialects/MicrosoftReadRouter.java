@@ -0,0 +1,244 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+/**
+ * Routes statements that are provably read-only to a read-intent pool (ApplicationIntent=ReadOnly) of an availability group, everything else goes to the primary.
+ * If a staleness tolerance is set, the replica lag is checked periodically on the primary and reads fall back to the primary while the replicas are too far behind.
+ *
+ * This is an opt-in helper for code that manages its own connections, the dialect does not pick connections so it does not route anything by itself.
+ *
+ * Pass the connection of the current transaction (if any). Writes run on it and are remembered, reads after a write in the same transaction stay on it so they see their own writes.
+ * Pools typically hand out connections with auto commit off, so that alone does not mean anything was written: a transaction that has only read is still routed to the replicas.
+ * Writes that don't go through the router have to be reported with setWritten(), call reset() after a commit or rollback.
+ */
+public class MicrosoftReadRouter {
+
+	public enum Route {
+		PRIMARY, READ_ONLY
+	}
+
+	public interface ConnectionCallback<T> {
+		public T execute(Connection connection) throws SQLException;
+	}
+
+	public static class RouteStatistics {
+		private final AtomicLong statements = new AtomicLong(), failures = new AtomicLong(), nanos = new AtomicLong();
+
+		public long getStatements() {
+			return statements.get();
+		}
+		public long getFailures() {
+			return failures.get();
+		}
+		public long getTotalNanos() {
+			return nanos.get();
+		}
+		public double getAverageMillis() {
+			long statements = this.statements.get();
+			return statements == 0 ? 0 : nanos.get() / 1000000d / statements;
+		}
+		/**
+		 * The statements per second while executing, this excludes idle time
+		 */
+		public double getThroughput() {
+			long nanos = this.nanos.get();
+			return nanos == 0 ? 0 : statements.get() / (nanos / 1000000000d);
+		}
+	}
+
+	private final DataSource primary, readOnly;
+	// the maximum lag in seconds we tolerate on the replicas, null means we don't check
+	private final Long maxStaleness;
+	// how often we check the replica lag
+	private final long lagCheckInterval;
+	private final RouteStatistics primaryStatistics = new RouteStatistics(), readOnlyStatistics = new RouteStatistics();
+	private volatile long lastLagCheck;
+	private volatile boolean replicasUsable = true;
+	// the connections that have written in their current transaction, weak so a connection that is never reset does not leak
+	private final Map<Connection, Boolean> writers = Collections.synchronizedMap(new WeakHashMap<Connection, Boolean>());
+
+	public MicrosoftReadRouter(DataSource primary, DataSource readOnly, Long maxStaleness) {
+		this(primary, readOnly, maxStaleness, 10000);
+	}
+
+	public MicrosoftReadRouter(DataSource primary, DataSource readOnly, Long maxStaleness, long lagCheckInterval) {
+		this.primary = primary;
+		this.readOnly = readOnly;
+		this.maxStaleness = maxStaleness;
+		this.lagCheckInterval = lagCheckInterval;
+	}
+
+	public Route getRoute(String sql) {
+		if (readOnly == null || !MicrosoftSQL.isReadOnly(sql)) {
+			return Route.PRIMARY;
+		}
+		return isReplicasUsable() ? Route.READ_ONLY : Route.PRIMARY;
+	}
+
+	/**
+	 * @param transaction the connection of the current transaction, can be null
+	 */
+	public Route getRoute(String sql, Connection transaction) throws SQLException {
+		return hasWritten(transaction) ? Route.PRIMARY : getRoute(sql);
+	}
+
+	// whether the transaction has uncommitted writes that a read should see
+	private boolean hasWritten(Connection transaction) throws SQLException {
+		if (transaction == null) {
+			return false;
+		}
+		// in auto commit every statement is committed on its own, there is nothing uncommitted to see
+		if (transaction.isClosed() || transaction.getAutoCommit()) {
+			writers.remove(transaction);
+			return false;
+		}
+		return writers.containsKey(transaction);
+	}
+
+	/**
+	 * Marks a write that was done on the connection outside of the router, until reset() the reads of its transaction stay on it
+	 */
+	public void setWritten(Connection transaction) throws SQLException {
+		if (transaction != null && !transaction.getAutoCommit()) {
+			writers.put(transaction, true);
+		}
+	}
+
+	/**
+	 * Call after the transaction is committed or rolled back so reads can go to the replicas again
+	 */
+	public void reset(Connection transaction) {
+		writers.remove(transaction);
+	}
+
+	public Connection getConnection(String sql) throws SQLException {
+		return getRoute(sql) == Route.READ_ONLY ? readOnly.getConnection() : primary.getConnection();
+	}
+
+	/**
+	 * Runs the callback on a connection of the correct route and closes the connection afterwards
+	 */
+	public <T> T execute(String sql, ConnectionCallback<T> callback) throws SQLException {
+		return execute(sql, null, callback);
+	}
+
+	/**
+	 * Runs the callback on a connection of the correct route and closes the connection afterwards.
+	 * If a transaction connection is given, writes run on it and so do the reads after the first write (it is not closed) so they see the uncommitted writes.
+	 */
+	public <T> T execute(String sql, Connection transaction, ConnectionCallback<T> callback) throws SQLException {
+		boolean write = !MicrosoftSQL.isReadOnly(sql);
+		boolean inTransaction = transaction != null && (write || hasWritten(transaction));
+		if (inTransaction && write) {
+			setWritten(transaction);
+		}
+		Route route = inTransaction ? Route.PRIMARY : getRoute(sql);
+		RouteStatistics statistics = getStatistics(route);
+		long started = System.nanoTime();
+		boolean success = false;
+		try {
+			if (inTransaction) {
+				T result = callback.execute(transaction);
+				success = true;
+				return result;
+			}
+			Connection connection = route == Route.READ_ONLY ? readOnly.getConnection() : primary.getConnection();
+			try {
+				T result = callback.execute(connection);
+				success = true;
+				return result;
+			}
+			finally {
+				connection.close();
+			}
+		}
+		finally {
+			statistics.statements.incrementAndGet();
+			statistics.nanos.addAndGet(System.nanoTime() - started);
+			if (!success) {
+				statistics.failures.incrementAndGet();
+			}
+		}
+	}
+
+	public RouteStatistics getStatistics(Route route) {
+		return route == Route.READ_ONLY ? readOnlyStatistics : primaryStatistics;
+	}
+
+	private boolean isReplicasUsable() {
+		if (maxStaleness == null) {
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		// only one thread does the check, the others use the last known state
+		if (now - lastLagCheck > lagCheckInterval) {
+			synchronized(this) {
+				if (now - lastLagCheck > lagCheckInterval) {
+					lastLagCheck = now;
+					replicasUsable = checkLag();
+				}
+			}
+		}
+		return replicasUsable;
+	}
+
+	private boolean checkLag() {
+		try {
+			Connection connection = primary.getConnection();
+			try {
+				Statement statement = connection.createStatement();
+				try {
+					// only available on the primary replica (sql server 2016+)
+					ResultSet result = statement.executeQuery("select max(secondary_lag_seconds) from sys.dm_hadr_database_replica_states where database_id = db_id() and is_local = 0");
+					try {
+						if (result.next()) {
+							long lag = result.getLong(1);
+							return result.wasNull() || lag <= maxStaleness;
+						}
+						return true;
+					}
+					finally {
+						result.close();
+					}
+				}
+				finally {
+					statement.close();
+				}
+			}
+			finally {
+				connection.close();
+			}
+		}
+		catch (SQLException e) {
+			// if we can't determine the lag, we don't risk stale reads
+			return false;
+		}
+	}
+}
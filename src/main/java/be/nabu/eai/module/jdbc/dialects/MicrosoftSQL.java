@@ -17,23 +17,24 @@
 
 package be.nabu.eai.module.jdbc.dialects;
 
-import java.math.BigDecimal;
-import java.math.BigInteger;
-import java.net.URI;
-import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Types;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.TimeZone;
+import java.util.Map;
 import java.util.UUID;
+import java.util.regex.Pattern;
 
+import javax.sql.DataSource;
+
+import be.nabu.eai.module.jdbc.dialects.MicrosoftInstrumentation.Operation;
 import be.nabu.eai.repository.EAIRepositoryUtils;
 import be.nabu.libs.evaluator.QueryParser;
 import be.nabu.libs.evaluator.QueryPart;
@@ -49,19 +50,33 @@ import be.nabu.libs.types.api.Element;
 import be.nabu.libs.types.api.SimpleType;
 import be.nabu.libs.types.properties.CollectionNameProperty;
 import be.nabu.libs.types.properties.ForeignKeyProperty;
-import be.nabu.libs.types.properties.FormatProperty;
 import be.nabu.libs.types.properties.IndexedProperty;
 import be.nabu.libs.types.properties.MinOccursProperty;
 import be.nabu.libs.types.properties.NameProperty;
 import be.nabu.libs.types.properties.UniqueProperty;
 
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
 import com.microsoft.sqlserver.jdbc.SQLServerConnection;
 
 public class MicrosoftSQL implements SQLDialect {
 
+	private static final Pattern TRUE = Pattern.compile("\\btrue\\b");
+	private static final Pattern FALSE = Pattern.compile("\\bfalse\\b");
+	private static final Pattern MERGE = Pattern.compile("(?i)(?s)[\\s]*\\binsert into\\b.*\\bon conflict\\b.*\\bdo update\\b.*");
+	
+	private static final MicrosoftInsertExporter insertExporter = new MicrosoftInsertExporter();
+	
+	// the rewritten sql only depends on the original sql, so it can be shared across all instances of the dialect
+	// set the size to 0 to disable the cache
+	private static final MicrosoftCache<String, String> rewriteCache = new MicrosoftCache<String, String>(Integer.parseInt(System.getProperty("mssql.rewrite.cache.size", "1024")));
+	
+	// null unless someone is interested
+	private static volatile MicrosoftInstrumentation instrumentation;
+
 	@Override
 	public boolean hasArraySupport(Element<?> element) {
-		return false;
+		return MicrosoftTableValuedParameters.isEnabled() && MicrosoftTableValuedParameters.isSupported(element);
 	}
 	
 	@Override
@@ -69,34 +84,44 @@ public class MicrosoftSQL implements SQLDialect {
 		return 1433;
 	}
 
-	// throws unsupported operation exception for createArrayOf
+	// the driver throws an unsupported operation exception for createArrayOf, we send the collection as a table valued parameter instead
 	@Override
 	public void setArray(PreparedStatement statement, Element<?> element, int index, Collection<?> collection) throws SQLException {
-		String sqlName = getSQLName(((SimpleType<?>) element.getType()).getInstanceClass());
-		sqlName = sqlName == null || !sqlName.equals("varchar2") ? sqlName : "varchar";
-		if (sqlName == null) {
-			throw new IllegalArgumentException("Could not determine the oracle sql name of: " + element.getName());
+		if (!MicrosoftTableValuedParameters.isSupported(element)) {
+			throw new IllegalArgumentException("Could not determine the table type of: " + element.getName());
 		}
-		if (collection.isEmpty()) {
-			statement.setNull(index, getSQLType(element), sqlName);
-		}
-		else {
-			Connection connection = statement.getConnection();
-			if (!(connection instanceof SQLServerConnection)) {
-				connection = connection.unwrap(SQLServerConnection.class);
-			}
-			String typeName = (EAIRepositoryUtils.uncamelify(element.getName()) + "_array").toUpperCase();
-			Array array = ((SQLServerConnection) connection).createArrayOf(typeName, collection.toArray());
-			statement.setArray(index, array);
+		MicrosoftInstrumentation instrumentation = MicrosoftSQL.instrumentation;
+		long started = instrumentation == null ? 0 : System.nanoTime();
+		MicrosoftTableValuedParameters.bind(statement, element, index, collection);
+		if (instrumentation != null) {
+			instrumentation.record(Operation.SET_ARRAY, System.nanoTime() - started, collection.size(), collection.size());
 		}
 	}
 	
 	@Override
 	public String limit(String sql, Long offset, Integer limit) {
+		MicrosoftInstrumentation instrumentation = MicrosoftSQL.instrumentation;
+		if (instrumentation == null) {
+			return limitUninstrumented(sql, offset, limit);
+		}
+		long started = System.nanoTime();
+		String result = limitUninstrumented(sql, offset, limit);
+		instrumentation.record(Operation.LIMIT, System.nanoTime() - started, sql.length(), result.length());
+		return result;
+	}
+	
+	private String limitUninstrumented(String sql, Long offset, Integer limit) {
+		// the query hints have to stay at the very end, after the offset and fetch
+		String option = null;
+		int optionIndex = offset == null && limit == null ? -1 : MicrosoftQueryScanner.getTopLevelOption(sql);
+		if (optionIndex >= 0) {
+			option = sql.substring(optionIndex);
+			sql = sql.substring(0, optionIndex).trim();
+		}
 		// you can only do an offset & fetch if you have an order by clause, otherwise the database will throw an error (note that offset and fetch were only added "recently" so older versions of mssql will not work)
-		// we remove everything between () to remove subselects etc and see if there is a plain "order by" statement
-		// if not, we add one on the first field that is returned
-		if ((offset != null || limit != null) && !sql.replaceAll("\\(.*\\)", "").toLowerCase().contains("order by")) {
+		// we look for an "order by" that is not part of a subselect, a window function, a literal or a comment
+		// if there is none, we add one on the first field that is returned
+		if ((offset != null || limit != null) && MicrosoftQueryScanner.getTopLevelOrderBy(sql) < 0) {
 			sql = sql + " ORDER BY 1";
 		}
 		// you _must_ specify an offset if specify a limit
@@ -109,65 +134,105 @@ public class MicrosoftSQL implements SQLDialect {
 		if (limit != null) {
 			sql = sql + " FETCH NEXT " + limit + " ROWS ONLY";
 		}
+		if (option != null) {
+			sql = sql + " " + option;
+		}
 		return sql;
 	}
+	
+	/**
+	 * Keyset pagination: every page costs the same regardless of how deep it is because we seek to the last key instead of skipping rows.
+	 * Any top level order by in the query is replaced by the keys.
+	 */
+	public MicrosoftKeyset limitAfter(String sql, List<String> keys, boolean hasLastKey, Integer limit) {
+		// query hints can not be in the derived table, they move to the outer query
+		int optionIndex = MicrosoftQueryScanner.getTopLevelOption(sql);
+		if (optionIndex >= 0) {
+			MicrosoftKeyset keyset = MicrosoftKeyset.build(stripOrderBy(sql.substring(0, optionIndex).trim()), keys, hasLastKey, limit);
+			return new MicrosoftKeyset(keyset.getSql() + " " + sql.substring(optionIndex), keyset.getParameterOrder());
+		}
+		return MicrosoftKeyset.build(stripOrderBy(sql), keys, hasLastKey, limit);
+	}
+	
+	/**
+	 * A page together with the total amount of rows in a single round trip, see MicrosoftPagedQuery
+	 */
+	public MicrosoftPagedQuery limitWithTotal(String sql, Long offset, Integer limit) {
+		String option = "";
+		String query = sql;
+		int optionIndex = MicrosoftQueryScanner.getTopLevelOption(sql);
+		if (optionIndex >= 0) {
+			option = " " + sql.substring(optionIndex);
+			query = sql.substring(0, optionIndex).trim();
+		}
+		String countSql = MicrosoftPagedQuery.buildCount(stripOrderBy(query)) + option;
+		String windowed = MicrosoftPagedQuery.addWindowCount(query);
+		String pageSql = limit(sql, offset, limit);
+		if (windowed != null) {
+			return new MicrosoftPagedQuery(sql, limit(windowed + option, offset, limit), pageSql, countSql, true);
+		}
+		return new MicrosoftPagedQuery(sql, pageSql + ";\n" + countSql, pageSql, countSql, false);
+	}
+	
+	/**
+	 * Reads the rows that changed after the last seen rowversion, see MicrosoftIncrementalRead.
+	 * The query must select the rowversion column, any top level order by is replaced by the rowversion.
+	 */
+	public MicrosoftIncrementalRead limitChanges(String sql, String column, Integer limit) {
+		String option = null;
+		int optionIndex = MicrosoftQueryScanner.getTopLevelOption(sql);
+		if (optionIndex >= 0) {
+			option = sql.substring(optionIndex);
+			sql = sql.substring(0, optionIndex).trim();
+		}
+		// the derived table allows the query to alias the rowversion column or select it from a join
+		String incremental = "select * from (" + stripOrderBy(sql) + ") incremental_page where " + column + " > ? and " + column + " < min_active_rowversion() order by " + column;
+		if (option != null) {
+			incremental += " " + option;
+		}
+		return new MicrosoftIncrementalRead(limit(incremental, null, limit), column, limit);
+	}
+	
+	// a derived table can not have an order by without top/offset
+	private static String stripOrderBy(String sql) {
+		int index = MicrosoftQueryScanner.getTopLevelOrderBy(sql);
+		return index < 0 ? sql : sql.substring(0, index).trim();
+	}
 
 	private String getPredefinedSQLType(Element<?> element) {
-		Class<?> instanceClass = ((SimpleType<?>) element.getType()).getInstanceClass();
-		if (String.class.isAssignableFrom(instanceClass) || char[].class.isAssignableFrom(instanceClass) || URI.class.isAssignableFrom(instanceClass) || instanceClass.isEnum()) {
-			return "varchar(max)";
-		}
-		else if (byte[].class.isAssignableFrom(instanceClass)) {
-			return "varbinary";
-		}
-		else if (Integer.class.isAssignableFrom(instanceClass)) {
-			return "int";
-		}
-		else if (Long.class.isAssignableFrom(instanceClass)) {
-			return "bigint";
-		}
-		else if (BigInteger.class.isAssignableFrom(instanceClass)) {
-			return "numeric(38, 0)";
-		}
-		else if (BigDecimal.class.isAssignableFrom(instanceClass)) {
-			return "decimal(38, 10)";
-		}
-		else if (Double.class.isAssignableFrom(instanceClass)) {
-			return "float(53)";
-		}
-		else if (Float.class.isAssignableFrom(instanceClass)) {
-			return "float(24)";
-		}
-		else if (Short.class.isAssignableFrom(instanceClass)) {
-			return "shortinteger";
-		}
-		else if (Boolean.class.isAssignableFrom(instanceClass)) {
-			return "bit";
-		}
-		else if (UUID.class.isAssignableFrom(instanceClass)) {
-			return "varchar(36)";
-		}
-		else if (Date.class.isAssignableFrom(instanceClass)) {
-			Value<String> property = element.getProperty(FormatProperty.getInstance());
-			if (property != null && property.getValue().equals("date")) {
-				return "date";
-			}
-			else if (property != null && property.getValue().equals("time")) {
-				return "time";
-			}
-			return "datetime2";
-		}
-		else {
-			return null;
-		}
+		return MicrosoftTypes.getColumnType(element);
 	}
 	
 	@Override
 	public String buildCreateSQL(ComplexType type, boolean compact) {
+		MicrosoftInstrumentation instrumentation = MicrosoftSQL.instrumentation;
+		if (instrumentation == null) {
+			return buildCreateSQLUninstrumented(type);
+		}
+		long started = System.nanoTime();
+		String result = buildCreateSQLUninstrumented(type);
+		instrumentation.record(Operation.CREATE_GENERATION, System.nanoTime() - started, 0, result.length());
+		return result;
+	}
+	
+	private String buildCreateSQLUninstrumented(ComplexType type) {
 		StringBuilder builder = new StringBuilder();
-		builder.append("create table " + EAIRepositoryUtils.uncamelify(getName(type.getProperties())) + " (\n");
+		String tableName = EAIRepositoryUtils.uncamelify(getName(type.getProperties()));
+		// the sequence has to exist before the table can use it as a default
+		String sequence = MicrosoftTableOptions.getSequence(type);
+		if (sequence != null) {
+			builder.append("create sequence " + sequence + " as bigint start with 1 increment by 1 no cycle cache 1000;\n");
+		}
+		builder.append("create table " + tableName + " (\n");
 		boolean first = true;
 		StringBuilder constraints = new StringBuilder();
+		// if we cluster on something else than the primary key, the primary key becomes nonclustered
+		List<String> clusteredKey = MicrosoftTableOptions.getClusteredKey(type);
+		String constraintOptions = MicrosoftTableOptions.getIndexOptions(type, true);
+		Map<String, String> columnTypes = new HashMap<String, String>();
+		// memory optimized tables have their indexes declared inline
+		boolean memoryOptimized = MicrosoftTableOptions.isMemoryOptimized(type);
+		boolean hasPrimaryKey = false;
 		for (Element<?> child : JDBCUtils.getFieldsInTable(type)) {
 			if (first) {
 				first = false;
@@ -176,12 +241,15 @@ public class MicrosoftSQL implements SQLDialect {
 				builder.append(",\n");
 			}
 			// if we have a complex type, generate an id field that references it
+			String columnType = child.getType() instanceof ComplexType ? "uniqueidentifier" : getPredefinedSQLType(child);
 			if (child.getType() instanceof ComplexType) {
-				builder.append("\t" + EAIRepositoryUtils.uncamelify(child.getName()) + "_id uuid");
+				builder.append("\t" + EAIRepositoryUtils.uncamelify(child.getName()) + "_id " + columnType);
+				columnTypes.put(EAIRepositoryUtils.uncamelify(child.getName()) + "_id", columnType);
 			}
 			else {
 				builder.append("\t" + EAIRepositoryUtils.uncamelify(child.getName())).append(" ")
-					.append(getPredefinedSQLType(child));
+					.append(columnType);
+				columnTypes.put(EAIRepositoryUtils.uncamelify(child.getName()), columnType);
 			}
 			
 			Value<String> foreignKey = child.getProperty(ForeignKeyProperty.getInstance());
@@ -201,15 +269,27 @@ public class MicrosoftSQL implements SQLDialect {
 			}
 			
 			if (child.getName().equals("id")) {
-				builder.append(" primary key");
+				MicrosoftTypes.validateKey("primary key of " + tableName, clusteredKey == null && !memoryOptimized, new String[] { EAIRepositoryUtils.uncamelify(child.getName()) }, new String[] { columnType });
+				if (memoryOptimized) {
+					Long bucketCount = MicrosoftTableOptions.getBucketCount(type);
+					builder.append(" primary key nonclustered").append(bucketCount == null ? "" : " hash with (bucket_count = " + bucketCount + ")");
+				}
+				else {
+					builder.append(clusteredKey == null ? " primary key" : " primary key nonclustered").append(constraintOptions);
+				}
+				hasPrimaryKey = true;
+				// numeric ids that are not set (e.g. by a MicrosoftKeyAllocator) come from the sequence, memory optimized tables don't support this default
+				if (sequence != null && !memoryOptimized && child.getType() instanceof SimpleType && Number.class.isAssignableFrom(((SimpleType<?>) child.getType()).getInstanceClass())) {
+					builder.append(" default (next value for " + sequence + ")");
+				}
 			}
 			else {
 				Integer value = ValueUtils.getValue(MinOccursProperty.getInstance(), child.getProperties());
 				if (value == null || value > 0) {
 					builder.append(" not null");
-					// for mandatory boolean values, we automatically insert "default false", this makes it easier to add mandatory boolean later on with alter scripts
-					if (Boolean.class.isAssignableFrom(((SimpleType<?>) child.getType()).getInstanceClass())) {
-						builder.append(" default false");
+					// for mandatory boolean values, we automatically insert "default 0", this makes it easier to add mandatory boolean later on with alter scripts
+					if (child.getType() instanceof SimpleType && Boolean.class.isAssignableFrom(((SimpleType<?>) child.getType()).getInstanceClass())) {
+						builder.append(" default 0");
 					}
 				}
 			}
@@ -219,28 +299,104 @@ public class MicrosoftSQL implements SQLDialect {
 				if (!constraints.toString().isEmpty()) {
 					constraints.append(",\n");
 				}
-				constraints.append("\tconstraint " + EAIRepositoryUtils.uncamelify(child.getName()) + "_unique unique (" + child.getName() + ")");
+				String columnName = EAIRepositoryUtils.uncamelify(child.getName());
+				MicrosoftTypes.validateKey(columnName + "_unique", false, new String[] { columnName }, new String[] { columnType });
+				constraints.append("\tconstraint " + columnName + "_unique unique (" + columnName + ")" + constraintOptions);
+			}
+		}
+		// a rowversion column for incremental reads, it is maintained by the server and is not part of the type
+		String rowVersion = MicrosoftTableOptions.getRowVersion(type);
+		if (rowVersion != null) {
+			if (columnTypes.containsKey(rowVersion)) {
+				throw new IllegalArgumentException("The rowversion column '" + rowVersion + "' already exists in " + tableName);
+			}
+			builder.append(",\n\t" + rowVersion + " rowversion");
+			columnTypes.put(rowVersion, "rowversion");
+		}
+		if (memoryOptimized) {
+			MicrosoftTableOptions.validateMemoryOptimized(type, columnTypes, hasPrimaryKey);
+			for (Element<?> child : JDBCUtils.getFieldsInTable(type)) {
+				Value<Boolean> indexedProperty = child.getProperty(IndexedProperty.getInstance());
+				if (indexedProperty != null && indexedProperty.getValue() != null && indexedProperty.getValue()) {
+					String columnName = EAIRepositoryUtils.uncamelify(child.getName()) + (child.getType() instanceof ComplexType ? "_id" : "");
+					if (!constraints.toString().isEmpty()) {
+						constraints.append(",\n");
+					}
+					Long bucketCount = MicrosoftTableOptions.getBucketCount(type, child);
+					constraints.append("\tindex idx_" + tableName + "_" + EAIRepositoryUtils.uncamelify(child.getName()) + " nonclustered")
+						.append(bucketCount == null ? " (" + columnName + ")" : " hash (" + columnName + ") with (bucket_count = " + bucketCount + ")");
+				}
 			}
 		}
 		if (!constraints.toString().isEmpty()) {
 			builder.append(",\n").append(constraints.toString());
 		}
-		builder.append("\n);");
+		builder.append("\n)");
+		String compression = MicrosoftTableOptions.getDataCompression(type);
+		if (memoryOptimized) {
+			builder.append(" with (memory_optimized = on, durability = " + MicrosoftTableOptions.getDurability(type).toLowerCase() + ")");
+			builder.append(";\n");
+			return builder.toString();
+		}
+		else if (compression != null) {
+			builder.append(" with (data_compression = " + compression.toLowerCase() + ")");
+		}
+		builder.append(";");
 		// create indexes
 		builder.append("\n");
+		String indexOptions = MicrosoftTableOptions.getIndexOptions(type, false);
+		if (rowVersion != null) {
+			builder.append("create index idx_" + tableName + "_" + rowVersion + " on " + tableName + "(" + rowVersion + ")" + indexOptions + ";\n");
+		}
+		if (clusteredKey != null) {
+			String indexName = "idx_" + tableName + "_clustered";
+			MicrosoftTypes.validateKey(indexName, true, clusteredKey.toArray(new String[clusteredKey.size()]), getColumnTypes(tableName, columnTypes, clusteredKey));
+			builder.append("create clustered index " + indexName + " on " + tableName + "(" + String.join(", ", clusteredKey) + ")" + indexOptions + ";\n");
+		}
 		for (Element<?> child : JDBCUtils.getFieldsInTable(type)) {
 			Value<Boolean> indexedProperty = child.getProperty(IndexedProperty.getInstance());
 			if (indexedProperty != null && indexedProperty.getValue() != null && indexedProperty.getValue()) {
 				String tableName2 = EAIRepositoryUtils.uncamelify(getName(type.getProperties()));
-				String columnName = EAIRepositoryUtils.uncamelify(child.getName());
-				String seqName = "idx_" + tableName2 + "_" + columnName;
-				String sql = "create index " + seqName + " on " + tableName2 + "(" + columnName + ");\n";
+				String seqName = "idx_" + tableName2 + "_" + EAIRepositoryUtils.uncamelify(child.getName());
+				// a complex child is stored as a reference in the _id column
+				String columnName = EAIRepositoryUtils.uncamelify(child.getName()) + (child.getType() instanceof ComplexType ? "_id" : "");
+				MicrosoftTypes.validateKey(seqName, false, new String[] { columnName }, new String[] { columnTypes.get(columnName) });
+				String sql = "create index " + seqName + " on " + tableName2 + "(" + columnName + ")";
+				// a covering index, the included columns are only stored in the leaf level so they don't count towards the key size
+				List<String> include = MicrosoftTableOptions.getIndexInclude(type, child);
+				if (include != null) {
+					getColumnTypes(tableName, columnTypes, include);
+					sql += " include (" + String.join(", ", include) + ")";
+				}
+				String filter = MicrosoftTableOptions.getIndexFilter(type, child);
+				if (filter == null && MicrosoftTableOptions.isFilteredIndexes(type)) {
+					Integer minOccurs = ValueUtils.getValue(MinOccursProperty.getInstance(), child.getProperties());
+					if (minOccurs != null && minOccurs == 0) {
+						filter = columnName + " is not null";
+					}
+				}
+				if (filter != null) {
+					sql += " where " + (filter.toLowerCase().startsWith("where ") ? filter.substring("where ".length()).trim() : filter);
+				}
+				sql += indexOptions + ";\n";
 				builder.append(sql);
 			}
 		}
 		return builder.toString();
 	}
 
+	// checks that the columns exist and returns their types
+	private static String[] getColumnTypes(String tableName, Map<String, String> columnTypes, List<String> columns) {
+		String[] types = new String[columns.size()];
+		for (int i = 0; i < columns.size(); i++) {
+			types[i] = columnTypes.get(columns.get(i));
+			if (types[i] == null) {
+				throw new IllegalArgumentException("The column '" + columns.get(i) + "' does not exist in " + tableName);
+			}
+		}
+		return types;
+	}
+
 	/**
 	 * --------------------------------------- copy of oracle @ 2017-09-08
 	 */
@@ -259,13 +415,48 @@ public class MicrosoftSQL implements SQLDialect {
 	
 	@Override
 	public String rewrite(String sql, ComplexType input, ComplexType output) {
+		if (sql == null) {
+			return null;
+		}
+		MicrosoftInstrumentation instrumentation = MicrosoftSQL.instrumentation;
+		long started = instrumentation == null ? 0 : System.nanoTime();
+		// hints on the type are part of the cache key, hints from the rule table only depend on the sql
+		String typeHints = MicrosoftQueryHints.getTypeHints(input);
+		// so are the list fields that are sent as a table valued parameter
+		String arrays = MicrosoftTableValuedParameters.getArrays(input);
+		String key = typeHints == null ? sql : sql + "\u0000" + typeHints;
+		if (arrays != null) {
+			key += "\u0001" + arrays;
+		}
+		String rewritten = rewriteCache.get(key);
+		if (rewritten == null) {
+			rewritten = rewriteUncached(MicrosoftTableValuedParameters.rewriteIn(sql, arrays));
+			String ruleHints = MicrosoftQueryHints.getRuleHints(sql);
+			if (ruleHints != null) {
+				rewritten = MicrosoftQueryHints.apply(rewritten, ruleHints);
+			}
+			if (typeHints != null) {
+				rewritten = MicrosoftQueryHints.apply(rewritten, typeHints);
+			}
+			rewriteCache.put(key, rewritten);
+		}
+		if (instrumentation != null) {
+			instrumentation.record(Operation.REWRITE, System.nanoTime() - started, sql.length(), rewritten.length());
+		}
+		return rewritten;
+	}
+	
+	private String rewriteUncached(String sql) {
 		// rewrite booleans to integers
 		// perhaps too broad...
-		sql = sql.replaceAll("\\btrue\\b", "1");
-		sql = sql.replaceAll("\\bfalse\\b", "0");
+		sql = TRUE.matcher(sql).replaceAll("1");
+		sql = FALSE.matcher(sql).replaceAll("0");
+		
+		// arrays are sent as table valued parameters which have to be selected from
+		sql = MicrosoftTableValuedParameters.ANY.matcher(sql).replaceAll("$1 in (select " + MicrosoftTableValuedParameters.COLUMN + " from $2)");
 		
 		// we have a merge statement
-		if (sql.matches("(?i)(?s)[\\s]*\\binsert into\\b.*\\bon conflict\\b.*\\bdo update\\b.*")) {
+		if (MERGE.matcher(sql).matches()) {
 			try {
 				sql = rewriteMerge(sql);
 			}
@@ -276,17 +467,130 @@ public class MicrosoftSQL implements SQLDialect {
 		return sql;
 	}
 	
+	/**
+	 * Streams a (possibly huge) select with constant memory, the caller pulls the rows and must close the query
+	 */
+	public MicrosoftStreamingQuery stream(Connection connection, String sql, List<?> parameters, Integer fetchSize, boolean serverCursor) throws SQLException {
+		return MicrosoftStreamingQuery.open(connection, sql, parameters, fetchSize, serverCursor);
+	}
+	
+	/**
+	 * Whether the statement can safely be sent to a read-only replica, e.g. the output of limit() or rewrite() for a plain select
+	 */
+	public static boolean isReadOnly(String sql) {
+		return sql != null && MicrosoftQueryScanner.isReadOnly(sql);
+	}
+	
+	public static MicrosoftInstrumentation getInstrumentation() {
+		return instrumentation;
+	}
+	
+	/**
+	 * Plug in instrumentation (e.g. MicrosoftMetrics) for all instances of the dialect, set to null to disable it again
+	 */
+	public static void setInstrumentation(MicrosoftInstrumentation instrumentation) {
+		MicrosoftSQL.instrumentation = instrumentation;
+	}
+	
+	public static MicrosoftCache<String, String> getRewriteCache() {
+		return rewriteCache;
+	}
+	
 	public static String rewriteMerge(String sql) throws ParseException {
+		MicrosoftInstrumentation instrumentation = MicrosoftSQL.instrumentation;
+		long started = instrumentation == null ? 0 : System.nanoTime();
+		Merge merge = parseMerge(sql);
+		// the framework executes the rewritten sql as one statement, it can not be split here
+		int parameters = 0;
+		for (List<String> row : merge.values) {
+			parameters += MicrosoftMergeTemplate.getParameterCount(row);
+		}
+		if (parameters > MicrosoftMergeTemplate.MAX_PARAMETERS - 1) {
+			throw new IllegalArgumentException("The upsert into " + merge.table + " has " + parameters + " parameters but a single statement can not have more than " + (MicrosoftMergeTemplate.MAX_PARAMETERS - 1) + ", use upsert(connection, sql, parameters) to split it");
+		}
+		String result = merge.template.build(merge.values);
+		if (instrumentation != null) {
+			instrumentation.record(Operation.MERGE_REWRITE, System.nanoTime() - started, sql.length(), result.length());
+		}
+		return result;
+	}
+	
+	/**
+	 * Rewrites the upsert into as many merge statements as necessary to stay under the parameter limit, each statement can be executed separately
+	 */
+	public static List<String> rewriteMergeChunked(String sql) throws ParseException {
+		Merge merge = parseMerge(sql);
+		return merge.template.build(merge.values, MicrosoftMergeTemplate.getChunkSize(merge.values));
+	}
+	
+	/**
+	 * Executes an "insert ... on conflict" with positional parameters, no matter how many rows it has.
+	 * A single statement can not have more than 2100 parameters, so the rows are split into merge statements that stay under the limit.
+	 * The statements are sent in as few round trips as possible (see MicrosoftBatch) in the transaction of the connection.
+	 * The first failing statement stops the upsert, the open transaction is not rolled back: the caller decides whether to commit the statements that did succeed.
+	 * Returns the amount of affected rows.
+	 */
+	public long upsert(Connection connection, String sql, List<?> parameters) throws SQLException, ParseException {
+		Merge merge = parseMerge(sql);
+		int chunkSize = MicrosoftMergeTemplate.getChunkSize(merge.values);
+		MicrosoftBatch batch = batch();
+		List<MicrosoftBatch.Result> results = new ArrayList<MicrosoftBatch.Result>();
+		int parameterIndex = 0;
+		for (int i = 0; i < merge.values.size(); i += chunkSize) {
+			List<List<String>> rows = merge.values.subList(i, Math.min(merge.values.size(), i + chunkSize));
+			List<Object> chunk = new ArrayList<Object>();
+			for (List<String> row : rows) {
+				for (int j = 0; j < row.size(); j++) {
+					String value = row.get(j);
+					// we only know which values belong to which statement if they are positional
+					if (value.startsWith(":")) {
+						throw new IllegalArgumentException("Named parameters can not be split over statements, use positional parameters: " + value);
+					}
+					else if (value.equals("?")) {
+						if (parameters == null || parameterIndex >= parameters.size()) {
+							throw new IllegalArgumentException("The upsert needs more parameters than the " + (parameters == null ? 0 : parameters.size()) + " that were given");
+						}
+						Object parameter = parameters.get(parameterIndex++);
+						// we know the column of every value so we can bind it with the exact column type
+						chunk.add(parameter instanceof MicrosoftColumnMetadata.ColumnValue ? parameter : MicrosoftColumnMetadata.value(merge.table, merge.fields.get(j), parameter));
+					}
+				}
+			}
+			results.add(batch.add(merge.template.build(rows), chunk.isEmpty() ? null : chunk));
+		}
+		if (parameters != null && parameterIndex != parameters.size()) {
+			throw new IllegalArgumentException("The upsert only uses " + parameterIndex + " of the " + parameters.size() + " parameters that were given");
+		}
+		batch.execute(connection);
+		long updated = 0;
+		for (MicrosoftBatch.Result result : results) {
+			updated += Math.max(0, result.getUpdateCount());
+		}
+		return updated;
+	}
+	
+	private static class Merge {
+		private MicrosoftMergeTemplate template;
+		private List<List<String>> values;
+		private String table;
+		private List<String> fields;
+	}
+	
+	private static Merge parseMerge(String sql) throws ParseException {
 		List<QueryPart> parsed = QueryParser.getInstance().interpret(QueryParser.getInstance().tokenize(sql), true);
 		int counter = 0;
 		if (!validate(parsed, counter++, "insert") || !validate(parsed, counter++, "into")) {
 			throw new ParseException("Expecint 'insert into'", counter);
 		}
 		String table = parsed.get(counter++).getToken().getContent();
-		System.out.println("Table: " + table);
 		// target table
 		String tableAlias = "tt";
-		System.out.println("Alias: " + tableAlias);
+		MicrosoftInstrumentation instrumentation = MicrosoftSQL.instrumentation;
+		boolean debug = instrumentation != null && instrumentation.isDebug();
+		if (debug) {
+			instrumentation.debug(Operation.MERGE_REWRITE, "table", table);
+			instrumentation.debug(Operation.MERGE_REWRITE, "alias", tableAlias);
+		}
 		if (!validate(parsed, counter++, "(")) {
 			throw new ParseException("Expecting opening '(' to list the fields", counter);
 		}
@@ -302,7 +606,9 @@ public class MicrosoftSQL implements SQLDialect {
 			}
 			fields.add(parsed.get(counter++).getToken().getContent());
 		}
-		System.out.println("Fields: " + fields);
+		if (debug) {
+			instrumentation.debug(Operation.MERGE_REWRITE, "fields", fields);
+		}
 		if (!validate(parsed, counter++, "values")) {
 			throw new ParseException("Expecting fixed string 'values' indicating start of values", counter);
 		}
@@ -347,7 +653,9 @@ public class MicrosoftSQL implements SQLDialect {
 				}
 			}
 		}
-		System.out.println("Values: " + values);
+		if (debug) {
+			instrumentation.debug(Operation.MERGE_REWRITE, "values", values);
+		}
 		if (!validate(parsed, counter++, "on") || !validate(parsed, counter++, "conflict")) {
 			throw new ParseException("Expecting 'on conflict'", counter);
 		}
@@ -370,170 +678,215 @@ public class MicrosoftSQL implements SQLDialect {
 			}
 			conflicts.add(conflict);
 		}
-		System.out.println("Conflicts: " + conflicts);
+		if (debug) {
+			instrumentation.debug(Operation.MERGE_REWRITE, "conflicts", conflicts);
+		}
 		if (!validate(parsed, counter++, "do") || !validate(parsed, counter++, "update") || !validate(parsed, counter++, "set")) {
 			throw new ParseException("Expecting 'do update set'", counter);
 		}
 		// the rest of the update statement can be copied verbatim
 		StringBuilder updateStatement = new StringBuilder();
+		String previous = null;
 		while (counter < parsed.size()) {
 			String content = parsed.get(counter++).getToken().getContent();
-			if (!content.equals(",")) {
+			// don't split qualified names like excluded.field
+			if (!content.equals(",") && !content.equals(".") && !".".equals(previous)) {
 				updateStatement.append(" ");
 			}
 			// if we are referencing the original table, inject the table alias
-			if (fields.contains(content)) {
+			if (fields.contains(content) && !".".equals(previous)) {
 				updateStatement.append(tableAlias).append(".").append(content);	
 			}
 			else {
 				updateStatement.append(content);
 			}
+			previous = content;
 		}
-		StringBuilder result = new StringBuilder();
-		result.append("merge into ")
-			.append(table)
-			.append(" ")
-			.append(tableAlias)
-			.append("\n\tusing (");
-		
-		for (int i = 0; i < values.size(); i++) {
-			if (i == 0) {
-				result.append("select ");
-			}
-			else {
-				result.append(" union all select ");
-			}
-			for (int j = 0; j < values.get(i).size(); j++) {
-				if (j > 0) {
-					result.append(", ");
-				}
-				result.append(values.get(i).get(j))
-					.append(" as ")
-					.append(fields.get(j));
-			}
-			result.append(" from dual");
+		Merge merge = new Merge();
+		merge.template = MicrosoftMergeTemplate.getTemplate(table, tableAlias, fields, conflicts, updateStatement.toString());
+		merge.values = values;
+		merge.table = table;
+		merge.fields = fields;
+		return merge;
+	}
+
+	@Override
+	public String buildInsertSQL(ComplexContent content, boolean compact) {
+		MicrosoftInstrumentation instrumentation = MicrosoftSQL.instrumentation;
+		if (instrumentation == null) {
+			return insertExporter.toInsert(content);
+		}
+		long started = System.nanoTime();
+		String result = insertExporter.toInsert(content);
+		instrumentation.record(Operation.INSERT_GENERATION, System.nanoTime() - started, 1, result.length());
+		return result;
+	}
+	
+	public MicrosoftInsertExporter getInsertExporter() {
+		return insertExporter;
+	}
+	
+	/**
+	 * Streams the records into the table of the given type using the bulk load protocol rather than individual inserts.
+	 * The records are pulled from the iterator while the bulk copy is writing, they are never all kept in memory.
+	 * Returns the amount of records that were written.
+	 */
+	public long bulkInsert(Connection connection, ComplexType type, Iterator<? extends ComplexContent> records, SQLServerBulkCopyOptions options) throws SQLException {
+		// memory optimized tables reject a table lock, they don't need it for a minimally logged load either
+		if (options != null && options.isTableLock() && MicrosoftTableOptions.isMemoryOptimized(type)) {
+			options.setTableLock(false);
 		}
-		
-		result.append(") excluded\n\ton (");
-		for (int i = 0; i < conflicts.size(); i++) {
-			if (i > 0) {
-				result.append(" and ");
-			}
-			result.append(tableAlias)
-				.append(".")
-				.append(conflicts.get(i))
-				.append(" = excluded.")
-				.append(conflicts.get(i));
+		return bulkInsert(connection, type, EAIRepositoryUtils.uncamelify(getName(type.getProperties())), records, options);
+	}
+	
+	private long bulkInsert(Connection connection, ComplexType type, String table, Iterator<? extends ComplexContent> records, SQLServerBulkCopyOptions options) throws SQLException {
+		if (!(connection instanceof SQLServerConnection)) {
+			connection = connection.unwrap(SQLServerConnection.class);
 		}
-		result.append(")\n\twhen matched then update set")
-			.append(updateStatement)
-			.append("\n\twhen not matched then insert (");
-		for (int i = 0; i < fields.size(); i++) {
-			if (i > 0) {
-				result.append(", ");
+		MicrosoftInstrumentation instrumentation = MicrosoftSQL.instrumentation;
+		long started = instrumentation == null ? 0 : System.nanoTime();
+		MicrosoftBulkRecord record = new MicrosoftBulkRecord(type, records);
+		SQLServerBulkCopy bulkCopy = new SQLServerBulkCopy(connection);
+		try {
+			if (options != null) {
+				bulkCopy.setBulkCopyOptions(options);
 			}
-			result.append(tableAlias).append(".").append(fields.get(i));
-		}
-		result.append(") values (");
-		for (int i = 0; i < fields.size(); i++) {
-			if (i > 0) {
-				result.append(", ");
+			bulkCopy.setDestinationTableName(table);
+			// map by name so the column order in the table does not matter
+			for (int i = 0; i < record.getColumns().size(); i++) {
+				bulkCopy.addColumnMapping(i + 1, record.getColumns().get(i));
 			}
-			result.append("excluded.").append(fields.get(i));
+			bulkCopy.writeToServer(record);
+		}
+		finally {
+			bulkCopy.close();
+		}
+		if (instrumentation != null) {
+			instrumentation.record(Operation.BULK_INSERT, System.nanoTime() - started, record.getRows(), record.getRows());
 		}
-		result.append(")");
-		return result.toString();
+		return record.getRows();
 	}
-
-	@Override
-	public String buildInsertSQL(ComplexContent content, boolean compact) {
-		StringBuilder keyBuilder = new StringBuilder();
-		StringBuilder valueBuilder = new StringBuilder();
-		SimpleDateFormat timestampFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-		SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-		timestampFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-		dateFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-		Date date = new Date();
-		for (Element<?> element : JDBCUtils.getFieldsInTable(content.getType())) {
-			if (element.getType() instanceof SimpleType) {
-				Class<?> instanceClass = ((SimpleType<?>) element.getType()).getInstanceClass();
-				if (!keyBuilder.toString().isEmpty()) {
-					keyBuilder.append(",\n\t");
-					valueBuilder.append(",\n\t");
+	
+	public long bulkInsert(Connection connection, ComplexType type, Iterable<? extends ComplexContent> records, Integer batchSize, boolean tableLock, boolean checkConstraints) throws SQLException {
+		return bulkInsert(connection, type, records.iterator(), newBulkCopyOptions(batchSize, tableLock, checkConstraints));
+	}
+	
+	/**
+	 * Upserts a large amount of records in a single transaction: the records are bulk copied into a session scoped temporary table that mirrors the target
+	 * and then merged into the target with one set-based statement on the conflict fields.
+	 * Returns the amount of rows affected by the merge.
+	 */
+	public long bulkUpsert(Connection connection, ComplexType type, Iterator<? extends ComplexContent> records, List<String> conflicts, SQLServerBulkCopyOptions options) throws SQLException {
+		MicrosoftStaging staging = new MicrosoftStaging(type, conflicts);
+		Statement statement = connection.createStatement();
+		try {
+			statement.execute(staging.buildCreate());
+			try {
+				bulkInsert(connection, type, staging.getStagingTable(), records, options);
+				String index = staging.buildIndex();
+				if (index != null) {
+					statement.execute(index);
 				}
-				keyBuilder.append(EAIRepositoryUtils.uncamelify(element.getName()));
-				Object value = content.get(element.getName());
-				Integer minOccurs = ValueUtils.getValue(MinOccursProperty.getInstance(), element.getProperties());
-				// if there is no value but it is mandatory, try to generate one
-				if (value == null && minOccurs != null && minOccurs > 0) {
-					if (UUID.class.isAssignableFrom(instanceClass)) {
-						value = UUID.randomUUID();
-					}
-					else if (Date.class.isAssignableFrom(instanceClass)) {
-						value = date;
-					}
-					else if (Number.class.isAssignableFrom(instanceClass)) {
-						value = 0;
-					}
-					else if (Boolean.class.isAssignableFrom(instanceClass)) {
-						value = false;
-					}
+				long result = statement.executeUpdate(staging.buildMerge());
+				statement.execute(staging.buildDrop());
+				return result;
+			}
+			catch (SQLException | RuntimeException e) {
+				// a failing drop must not hide the original exception
+				try {
+					statement.execute(staging.buildDrop());
 				}
-				if (value == null) {
-					valueBuilder.append("null");
-				}
-				else {
-					boolean closeQuote = false;
-					if (Boolean.class.isAssignableFrom(instanceClass)) {
-						if ((Boolean) value) {
-							valueBuilder.append("1");
-						}
-						else {
-							valueBuilder.append("0");
-						}
-					}
-					else if (Date.class.isAssignableFrom(instanceClass)) {
-						Value<String> property = element.getProperty(FormatProperty.getInstance());
-						if (property != null && !property.getValue().equals("timestamp") && !property.getValue().contains("S") && !property.getValue().equals("time")) {
-							valueBuilder.append("to_timestamp('").append(timestampFormatter.format(value)).append("', 'yyyy-mm-dd hh24:mi:ss.ff3')");
-						}
-						else {
-							valueBuilder.append("to_date('").append(dateFormatter.format(value)).append("', 'yyyy-mm-dd hh24:mi:ss')");
-						}
-					}
-					else {
-						if (URI.class.isAssignableFrom(instanceClass) || String.class.isAssignableFrom(instanceClass) || UUID.class.isAssignableFrom(instanceClass)) {
-							valueBuilder.append("'");
-							closeQuote = true;
-						}
-						valueBuilder.append(value.toString());
-						if (closeQuote) {
-							valueBuilder.append("'");
-						}
-					}
+				catch (SQLException | RuntimeException dropException) {
+					e.addSuppressed(dropException);
 				}
+				throw e;
 			}
 		}
-		return "insert into " + EAIRepositoryUtils.uncamelify(getName(content.getType().getProperties())) + " (\n\t" + keyBuilder.toString() + "\n) values (\n\t" + valueBuilder.toString() + "\n);";
+		finally {
+			statement.close();
+		}
+	}
+	
+	/**
+	 * Combines several statements into as few round trips as possible, see MicrosoftBatch.
+	 * An error stops the batch but leaves the open transaction to the caller, use batch(true) to roll it back entirely on the first error.
+	 */
+	public MicrosoftBatch batch() {
+		return new MicrosoftBatch();
+	}
+
+	public MicrosoftBatch batch(boolean rollbackOnError) {
+		return new MicrosoftBatch(rollbackOnError);
+	}
+	
+	/**
+	 * Reads the query in parallel key ranges on separate connections, see MicrosoftParallelRead
+	 */
+	public static MicrosoftParallelRead parallel(DataSource dataSource, String sql, List<?> parameters, String key, int partitions, int parallelism, boolean ordered) throws SQLException {
+		return MicrosoftParallelRead.open(dataSource, sql, parameters, key, partitions, parallelism, ordered);
+	}
+	
+	/**
+	 * Inserts the contents and all their nested children in a single round trip, see MicrosoftHierarchicalInsert
+	 */
+	public long insertHierarchy(Connection connection, Collection<? extends ComplexContent> contents) throws SQLException {
+		return new MicrosoftHierarchicalInsert(contents).execute(connection);
+	}
+	
+	public static SQLServerBulkCopyOptions newBulkCopyOptions(Integer batchSize, boolean tableLock, boolean checkConstraints) throws SQLException {
+		SQLServerBulkCopyOptions options = new SQLServerBulkCopyOptions();
+		// by default everything is sent as one batch, we don't want the server to hold millions of rows in a single batch
+		options.setBatchSize(batchSize == null ? Integer.parseInt(System.getProperty("mssql.bulk.batch.size", "10000")) : batchSize);
+		options.setTableLock(tableLock);
+		options.setCheckConstraints(checkConstraints);
+		// we are running inside the transaction of the connection
+		options.setUseInternalTransaction(false);
+		options.setBulkCopyTimeout(0);
+		return options;
 	}
 
+	/**
+	 * Binds a parameter of a statement the dialect executes itself (paged, streaming, batched... queries).
+	 * Values wrapped with MicrosoftColumnMetadata.value(...) are bound with the exact type of their column.
+	 * With native binding UUIDs are sent as the 16 bytes of a uniqueidentifier (in the sql server byte order), otherwise as their string representation.
+	 */
+	public static void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+		if (value instanceof MicrosoftColumnMetadata.ColumnValue) {
+			MicrosoftColumnMetadata.ColumnValue columnValue = (MicrosoftColumnMetadata.ColumnValue) value;
+			MicrosoftColumnMetadata.bind(statement, index, columnValue.getValue(), columnValue.getTable(), columnValue.getColumn());
+		}
+		else if (value instanceof UUID) {
+			if (MicrosoftUUIDs.isNativeBinding()) {
+				MicrosoftUUIDs.bind(statement, index, (UUID) value);
+			}
+			else {
+				statement.setString(index, value.toString());
+			}
+		}
+		else {
+			statement.setObject(index, value);
+		}
+	}
+	
 	@Override
 	public Class<?> getTargetClass(Class<?> clazz) {
-		// UUID is not a dedicated type in oracle
+		// the framework would convert UUIDs to bytes in java order instead of the mixed endian order of a uniqueidentifier, so we always hand it strings
+		// sql server converts the string parameter (not the column) to a uniqueidentifier, native binding is done where the dialect binds itself (see bind())
 		if (UUID.class.isAssignableFrom(clazz)) {
 			return String.class;
 		}
-		// make sure we transform booleans to integers
+		// booleans are bound as bit, the column type generated by buildCreateSQL
 		else if (Boolean.class.isAssignableFrom(clazz)) {
-			return Integer.class;
+			return Boolean.class;
 		}
 		return SQLDialect.super.getTargetClass(clazz);
 	}
 
 	@Override
 	public Integer getSQLType(Class<?> instanceClass) {
+		// bind with the same type as the column buildCreateSQL generates, otherwise sql server converts the column and can no longer seek
 		if (Boolean.class.equals(instanceClass)) {
-			return Types.NUMERIC;
+			return Types.BIT;
 		}
 		else if (UUID.class.equals(instanceClass)) {
 			return Types.VARCHAR;
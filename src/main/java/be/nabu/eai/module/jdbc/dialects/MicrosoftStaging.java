@@ -0,0 +1,130 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.eai.repository.EAIRepositoryUtils;
+import be.nabu.libs.services.jdbc.JDBCUtils;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+
+/**
+ * Generates the statements for a staged bulk upsert: a temporary table with the same columns as the target (using the same types as buildCreateSQL),
+ * a clustered index on the conflict columns and a single merge from the temporary table into the target.
+ * A merge fails (error 8672) when more than one source row matches the same target row so duplicate conflict keys are reduced to the last row that was loaded.
+ */
+public class MicrosoftStaging {
+
+	// records the load order so we know which of the duplicates came last, the name is unlikely to clash with a real column
+	private static final String ROW = "__staging_row";
+
+	private final String table, stagingTable;
+	private final List<String> columns = new ArrayList<String>(), columnTypes = new ArrayList<String>(), conflicts = new ArrayList<String>();
+
+	public MicrosoftStaging(ComplexType type, List<String> conflicts) {
+		this.table = EAIRepositoryUtils.uncamelify(MicrosoftSQL.getName(type.getProperties()));
+		// a temporary table (#) is only visible to the session that created it
+		this.stagingTable = "#staging_" + table.replaceAll("[^\\w]+", "_");
+		for (Element<?> element : JDBCUtils.getFieldsInTable(type)) {
+			if (element.getType() instanceof SimpleType) {
+				columns.add(EAIRepositoryUtils.uncamelify(element.getName()));
+				columnTypes.add(MicrosoftTypes.getColumnType(element));
+			}
+		}
+		if (conflicts == null || conflicts.isEmpty()) {
+			throw new IllegalArgumentException("A bulk upsert needs at least one conflict field");
+		}
+		for (String conflict : conflicts) {
+			String column = EAIRepositoryUtils.uncamelify(conflict);
+			if (!columns.contains(column)) {
+				throw new IllegalArgumentException("The conflict field '" + conflict + "' is not a column of " + table);
+			}
+			this.conflicts.add(column);
+		}
+	}
+
+	public String getStagingTable() {
+		return stagingTable;
+	}
+
+	public String buildCreate() {
+		StringBuilder builder = new StringBuilder("create table ").append(stagingTable).append(" (");
+		for (int i = 0; i < columns.size(); i++) {
+			builder.append(columns.get(i)).append(" ").append(columnTypes.get(i)).append(" null, ");
+		}
+		// the bulk copy maps the columns by name so it simply fills in the identity
+		return builder.append(ROW).append(" bigint identity(1, 1) not null)").toString();
+	}
+
+	/**
+	 * A clustered index on the conflict columns lets the merge join efficiently, null if the columns can not be indexed
+	 */
+	public String buildIndex() {
+		String[] keyColumns = conflicts.toArray(new String[conflicts.size()]);
+		String[] keyTypes = new String[keyColumns.length];
+		for (int i = 0; i < keyColumns.length; i++) {
+			keyTypes[i] = columnTypes.get(columns.indexOf(keyColumns[i]));
+		}
+		try {
+			MicrosoftTypes.validateKey(stagingTable, true, keyColumns, keyTypes);
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+		return "create clustered index idx_staging on " + stagingTable + " (" + String.join(", ", conflicts) + ")";
+	}
+
+	public String buildMerge() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("merge into ").append(table).append(" as tt")
+			.append("\n\tusing (select * from (select *, row_number() over (partition by ").append(String.join(", ", conflicts))
+			.append(" order by ").append(ROW).append(" desc) as ").append(ROW).append("_number from ").append(stagingTable)
+			.append(") staged where ").append(ROW).append("_number = 1) as excluded")
+			.append("\n\ton (");
+		for (int i = 0; i < conflicts.size(); i++) {
+			if (i > 0) {
+				builder.append(" and ");
+			}
+			builder.append("tt.").append(conflicts.get(i)).append(" = excluded.").append(conflicts.get(i));
+		}
+		builder.append(")");
+		boolean first = true;
+		for (String column : columns) {
+			if (!conflicts.contains(column)) {
+				builder.append(first ? "\n\twhen matched then update set " : ", ");
+				builder.append("tt.").append(column).append(" = excluded.").append(column);
+				first = false;
+			}
+		}
+		builder.append("\n\twhen not matched then insert (").append(String.join(", ", columns)).append(") values (");
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append("excluded.").append(columns.get(i));
+		}
+		return builder.append(");").toString();
+	}
+
+	public String buildDrop() {
+		return "drop table " + stagingTable;
+	}
+}
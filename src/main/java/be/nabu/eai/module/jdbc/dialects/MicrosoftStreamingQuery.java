@@ -0,0 +1,197 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.microsoft.sqlserver.jdbc.SQLServerResultSet;
+import com.microsoft.sqlserver.jdbc.SQLServerStatement;
+
+/**
+ * Streams the result of a select row by row with constant memory.
+ *
+ * The statement is forward only and read only with adaptive response buffering so the driver only reads from the network what the caller consumes.
+ * Rows are pulled by the caller, as long as the caller does not ask for the next row, nothing more is read (that is the backpressure).
+ * Optionally a server side cursor is used which fetches "fetchSize" rows per round trip, this also limits what the server sends ahead.
+ */
+public class MicrosoftStreamingQuery implements Iterator<Object[]>, AutoCloseable {
+
+	private final PreparedStatement statement;
+	private final ResultSet result;
+	private final String[] columns;
+	private final long started = System.nanoTime();
+	private Boolean hasNext;
+	private long rows, bytes;
+	private boolean closed;
+
+	private MicrosoftStreamingQuery(PreparedStatement statement, ResultSet result) throws SQLException {
+		this.statement = statement;
+		this.result = result;
+		ResultSetMetaData metaData = result.getMetaData();
+		this.columns = new String[metaData.getColumnCount()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = metaData.getColumnLabel(i + 1);
+		}
+	}
+
+	/**
+	 * @param parameters the positional parameters, can be null
+	 * @param fetchSize the amount of rows per round trip when using a server cursor, can be null
+	 * @param serverCursor whether to use a server side forward only cursor instead of the default (direct) result set
+	 */
+	public static MicrosoftStreamingQuery open(Connection connection, String sql, List<?> parameters, Integer fetchSize, boolean serverCursor) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(sql, serverCursor ? SQLServerResultSet.TYPE_SS_SERVER_CURSOR_FORWARD_ONLY : ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		try {
+			SQLServerStatement sqlServerStatement = statement instanceof SQLServerStatement ? (SQLServerStatement) statement : statement.unwrap(SQLServerStatement.class);
+			// never let the driver buffer the complete response, regardless of the connection settings
+			sqlServerStatement.setResponseBuffering("adaptive");
+			if (fetchSize != null) {
+				statement.setFetchSize(fetchSize);
+			}
+			if (parameters != null) {
+				for (int i = 0; i < parameters.size(); i++) {
+					MicrosoftSQL.bind(statement, i + 1, parameters.get(i));
+				}
+			}
+			return new MicrosoftStreamingQuery(statement, statement.executeQuery());
+		}
+		catch (SQLException e) {
+			statement.close();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			statement.close();
+			throw e;
+		}
+	}
+
+	public String[] getColumns() {
+		return columns;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (hasNext == null) {
+			try {
+				hasNext = !closed && result.next();
+				// release the resources as soon as we are done
+				if (!hasNext) {
+					close();
+				}
+			}
+			catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return hasNext;
+	}
+
+	@Override
+	public Object[] next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		hasNext = null;
+		try {
+			Object[] row = new Object[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				row[i] = result.getObject(i + 1);
+				bytes += estimateSize(row[i]);
+			}
+			rows++;
+			return row;
+		}
+		catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static long estimateSize(Object value) {
+		if (value == null) {
+			return 0;
+		}
+		else if (value instanceof String) {
+			return 2l * ((String) value).length();
+		}
+		else if (value instanceof byte[]) {
+			return ((byte[]) value).length;
+		}
+		else if (value instanceof Integer || value instanceof Float) {
+			return 4;
+		}
+		else if (value instanceof Short) {
+			return 2;
+		}
+		else if (value instanceof Boolean || value instanceof Byte) {
+			return 1;
+		}
+		return 8;
+	}
+
+	/**
+	 * The amount of rows that have been handed to the caller
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	 * An estimate of the amount of bytes handed to the caller
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	public double getRowsPerSecond() {
+		long elapsed = System.nanoTime() - started;
+		return elapsed == 0 ? 0 : rows / (elapsed / 1000000000d);
+	}
+
+	/**
+	 * Cancels the running statement, unlike close this can be called from another thread than the one reading
+	 */
+	public void cancel() throws SQLException {
+		statement.cancel();
+	}
+
+	/**
+	 * Closing before the end cancels the statement so the server stops sending rows
+	 */
+	@Override
+	public void close() throws SQLException {
+		if (!closed) {
+			closed = true;
+			try {
+				if (hasNext == null || hasNext) {
+					statement.cancel();
+				}
+				result.close();
+			}
+			finally {
+				statement.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.nabu.eai.repository.EAIRepositoryUtils;
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+
+/**
+ * Physical options for the tables and indexes generated by buildCreateSQL. They are read by name from the properties of the type (or the element for index options)
+ * or, if the type can not carry them, from a registry keyed on the table name (or "table.column" for index options).
+ *
+ * Type options:
+ * - dataCompression: NONE, ROW or PAGE, applied to the table and all its indexes
+ * - onlineIndexes: true to create the indexes with ONLINE = ON and SORT_IN_TEMPDB = ON (enterprise edition) so they can be deployed without blocking writers
+ * - filteredIndexes: true to only index the rows that have a value for optional columns
+ * - clusteredKey: a comma separated list of fields to cluster on, the primary key becomes nonclustered
+ * - memoryOptimized: true to generate an in-memory oltp table (sql server 2016+), the indexes are declared inline and none of the above options apply
+ * - durability: SCHEMA_AND_DATA (default) or SCHEMA_ONLY for memory optimized tables whose data does not have to survive a restart
+ * - rowVersion: true (for a column called "row_version") or the name of a rowversion column to add, together with an index, for incremental reads (see MicrosoftIncrementalRead)
+ * - sequence: true (for a sequence called "<table>_seq") or the name of a sequence to create, numeric ids default to its next value (see MicrosoftKeyAllocator)
+ * - bucketCount: turns the primary key of a memory optimized table into a hash index with this amount of buckets (ideally 1 to 2 times the amount of distinct keys)
+ *
+ * Element options:
+ * - indexFilter: an explicit filter predicate for the index on this column
+ * - indexInclude: a comma separated list of fields to include in the index on this column (a covering index)
+ * - bucketCount: turns the index on this column of a memory optimized table into a hash index, hash indexes only help equality lookups
+ */
+public class MicrosoftTableOptions {
+
+	public static final String DATA_COMPRESSION = "dataCompression";
+	public static final String ONLINE_INDEXES = "onlineIndexes";
+	public static final String FILTERED_INDEXES = "filteredIndexes";
+	public static final String CLUSTERED_KEY = "clusteredKey";
+	public static final String INDEX_FILTER = "indexFilter";
+	public static final String INDEX_INCLUDE = "indexInclude";
+	public static final String MEMORY_OPTIMIZED = "memoryOptimized";
+	public static final String DURABILITY = "durability";
+	public static final String BUCKET_COUNT = "bucketCount";
+	public static final String ROW_VERSION = "rowVersion";
+	public static final String SEQUENCE = "sequence";
+
+	// the column types that can not be used in a memory optimized table
+	private static final Set<String> MEMORY_OPTIMIZED_UNSUPPORTED = new HashSet<String>(Arrays.asList("text", "ntext", "image", "xml", "sql_variant", "hierarchyid", "geometry", "geography", "rowversion", "timestamp"));
+
+	private static final Map<String, Map<String, String>> registry = new ConcurrentHashMap<String, Map<String, String>>();
+
+	/**
+	 * Registers an option for a table (e.g. "my_table") or a column (e.g. "my_table.my_column"), a null value removes it
+	 */
+	public static void register(String target, String name, String value) {
+		Map<String, String> options = registry.get(target);
+		if (options == null) {
+			registry.putIfAbsent(target, new ConcurrentHashMap<String, String>());
+			options = registry.get(target);
+		}
+		if (value == null) {
+			options.remove(name);
+		}
+		else {
+			options.put(name, value);
+		}
+	}
+
+	public static void clear() {
+		registry.clear();
+	}
+
+	/**
+	 * Looks up a property by its name, this allows for properties that are not known to this module
+	 */
+	static String getProperty(Value<?>[] properties, String name) {
+		if (properties != null) {
+			for (Value<?> value : properties) {
+				if (value != null && value.getProperty() != null && name.equals(value.getProperty().getName()) && value.getValue() != null) {
+					return value.getValue().toString();
+				}
+			}
+		}
+		return null;
+	}
+
+	static String getTypeOption(ComplexType type, String name) {
+		String value = getProperty(type.getProperties(), name);
+		if (value == null) {
+			Map<String, String> options = registry.get(getTableName(type));
+			value = options == null ? null : options.get(name);
+		}
+		return value == null || value.trim().isEmpty() ? null : value.trim();
+	}
+
+	static String getElementOption(ComplexType type, Element<?> element, String name) {
+		String value = getProperty(element.getProperties(), name);
+		if (value == null) {
+			Map<String, String> options = registry.get(getTableName(type) + "." + EAIRepositoryUtils.uncamelify(element.getName()));
+			value = options == null ? null : options.get(name);
+		}
+		return value == null || value.trim().isEmpty() ? null : value.trim();
+	}
+
+	private static String getTableName(ComplexType type) {
+		return EAIRepositoryUtils.uncamelify(MicrosoftSQL.getName(type.getProperties()));
+	}
+
+	public static String getDataCompression(ComplexType type) {
+		String compression = getTypeOption(type, DATA_COMPRESSION);
+		if (compression == null) {
+			return null;
+		}
+		compression = compression.toUpperCase();
+		if (!compression.equals("NONE") && !compression.equals("ROW") && !compression.equals("PAGE")) {
+			throw new IllegalArgumentException("Unsupported data compression for " + getTableName(type) + ": " + compression);
+		}
+		return compression;
+	}
+
+	public static boolean isOnlineIndexes(ComplexType type) {
+		return Boolean.parseBoolean(getTypeOption(type, ONLINE_INDEXES));
+	}
+
+	public static boolean isFilteredIndexes(ComplexType type) {
+		return Boolean.parseBoolean(getTypeOption(type, FILTERED_INDEXES));
+	}
+
+	/**
+	 * The uncamelified columns of the clustered key or null if we cluster on the primary key
+	 */
+	public static List<String> getClusteredKey(ComplexType type) {
+		return getColumns(getTypeOption(type, CLUSTERED_KEY));
+	}
+
+	public static List<String> getIndexInclude(ComplexType type, Element<?> element) {
+		return getColumns(getElementOption(type, element, INDEX_INCLUDE));
+	}
+
+	public static String getIndexFilter(ComplexType type, Element<?> element) {
+		return getElementOption(type, element, INDEX_FILTER);
+	}
+
+	private static List<String> getColumns(String value) {
+		if (value == null) {
+			return null;
+		}
+		List<String> columns = new ArrayList<String>();
+		for (String part : value.split("[\\s]*,[\\s]*")) {
+			if (!part.trim().isEmpty()) {
+				columns.add(EAIRepositoryUtils.uncamelify(part.trim()));
+			}
+		}
+		return columns.isEmpty() ? null : columns;
+	}
+
+	public static String getRowVersion(ComplexType type) {
+		String rowVersion = getTypeOption(type, ROW_VERSION);
+		if (rowVersion == null || rowVersion.equalsIgnoreCase("false")) {
+			return null;
+		}
+		return rowVersion.equalsIgnoreCase("true") ? "row_version" : EAIRepositoryUtils.uncamelify(rowVersion);
+	}
+
+	public static String getSequence(ComplexType type) {
+		String sequence = getTypeOption(type, SEQUENCE);
+		if (sequence == null || sequence.equalsIgnoreCase("false")) {
+			return null;
+		}
+		return sequence.equalsIgnoreCase("true") ? getTableName(type) + "_seq" : EAIRepositoryUtils.uncamelify(sequence);
+	}
+
+	public static boolean isMemoryOptimized(ComplexType type) {
+		return Boolean.parseBoolean(getTypeOption(type, MEMORY_OPTIMIZED));
+	}
+
+	public static String getDurability(ComplexType type) {
+		String durability = getTypeOption(type, DURABILITY);
+		if (durability == null) {
+			return "SCHEMA_AND_DATA";
+		}
+		durability = durability.toUpperCase();
+		if (!durability.equals("SCHEMA_AND_DATA") && !durability.equals("SCHEMA_ONLY")) {
+			throw new IllegalArgumentException("Unsupported durability for " + getTableName(type) + ": " + durability);
+		}
+		return durability;
+	}
+
+	public static Long getBucketCount(ComplexType type) {
+		return toBucketCount(getTypeOption(type, BUCKET_COUNT));
+	}
+
+	public static Long getBucketCount(ComplexType type, Element<?> element) {
+		return toBucketCount(getElementOption(type, element, BUCKET_COUNT));
+	}
+
+	private static Long toBucketCount(String value) {
+		if (value == null) {
+			return null;
+		}
+		long bucketCount = Long.parseLong(value);
+		// the server rounds up to the next power of two, the maximum is 2^30
+		if (bucketCount <= 0 || bucketCount > 1073741824) {
+			throw new IllegalArgumentException("The bucket count must be between 1 and 1073741824: " + value);
+		}
+		return bucketCount;
+	}
+
+	/**
+	 * Checks that the table does not use anything memory optimized tables reject
+	 */
+	public static void validateMemoryOptimized(ComplexType type, Map<String, String> columnTypes, boolean hasPrimaryKey) {
+		String tableName = getTableName(type);
+		if (getDataCompression(type) != null || getClusteredKey(type) != null || isFilteredIndexes(type) || isOnlineIndexes(type)) {
+			throw new IllegalArgumentException("The memory optimized table " + tableName + " does not support data compression, clustered keys, filtered indexes or online index creation");
+		}
+		// only tables without durable data can do without a primary key
+		if (!hasPrimaryKey && getDurability(type).equals("SCHEMA_AND_DATA")) {
+			throw new IllegalArgumentException("The memory optimized table " + tableName + " needs a primary key (an 'id' field) unless the durability is SCHEMA_ONLY");
+		}
+		for (Map.Entry<String, String> column : columnTypes.entrySet()) {
+			String baseType = column.getValue().replaceAll("\\(.*$", "").trim().toLowerCase();
+			if (MEMORY_OPTIMIZED_UNSUPPORTED.contains(baseType)) {
+				throw new IllegalArgumentException("The column '" + column.getKey() + "' of the memory optimized table " + tableName + " has an unsupported type: " + column.getValue());
+			}
+		}
+	}
+
+	/**
+	 * The "with (...)" clause for an index (including constraints) or an empty string if there are no options
+	 */
+	public static String getIndexOptions(ComplexType type, boolean constraint) {
+		// the indexes of memory optimized tables don't have any of these options
+		if (isMemoryOptimized(type)) {
+			return "";
+		}
+		List<String> options = new ArrayList<String>();
+		String compression = getDataCompression(type);
+		if (compression != null) {
+			options.add("data_compression = " + compression.toLowerCase());
+		}
+		// online is not an option for indexes that are created as part of the table
+		if (!constraint && isOnlineIndexes(type)) {
+			options.add("online = on");
+			options.add("sort_in_tempdb = on");
+		}
+		return options.isEmpty() ? "" : " with (" + String.join(", ", options) + ")";
+	}
+}
@@ -0,0 +1,295 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import be.nabu.eai.repository.EAIRepositoryUtils;
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+
+import com.microsoft.sqlserver.jdbc.SQLServerDataTable;
+import com.microsoft.sqlserver.jdbc.SQLServerPreparedStatement;
+
+/**
+ * The mssql driver does not support createArrayOf, instead we send collections as a table valued parameter.
+ * Each array element gets a table type "<element>_<sql type>_array" with a single column "value", it is created on first use if it does not exist yet.
+ * The sql type is part of the name so elements with the same name but a different type don't share (and break) each other's table type.
+ * On the sql side the array is used like a table, the dialect rewrites "field = any(:list)" and "field in (:list)" to "field in (select value from :list)".
+ *
+ * This is off by default (mssql.array.tvp): without array support the framework expands a list into "?, ?, ?" which existing sql relies on.
+ */
+public class MicrosoftTableValuedParameters {
+
+	public static final String COLUMN = "value";
+
+	// rewrites the postgresql-style "= any(?)" to something that can work with a table valued parameter
+	static final Pattern ANY = Pattern.compile("(?i)([\\w.\\[\\]\"]+)\\s*=\\s*any\\s*\\(\\s*(:[\\w]+|\\?)\\s*\\)");
+
+	// "in (:list)" is only rewritten if the parameter is actually a list in the input
+	static final Pattern IN = Pattern.compile("(?i)\\bin\\s*\\(\\s*:([\\w]+)\\s*\\)");
+
+	// whether collections are sent as a table valued parameter at all
+	private static boolean enabled = Boolean.parseBoolean(System.getProperty("mssql.array.tvp", "false"));
+
+	// whether or not we are allowed to create the table types if they don't exist
+	private static boolean provision = Boolean.parseBoolean(System.getProperty("mssql.array.provision", "true"));
+
+	// the table types we know to exist, keyed on the catalog they live in
+	private static Set<String> provisioned = ConcurrentHashMap.newKeySet();
+
+	public static boolean isSupported(Element<?> element) {
+		return element.getType() instanceof SimpleType && getColumnType(((SimpleType<?>) element.getType()).getInstanceClass()) != null;
+	}
+
+	/**
+	 * The names of the list fields in the input that are sent as a table valued parameter, sorted, null if there are none
+	 */
+	public static String getArrays(ComplexType input) {
+		if (!enabled || input == null) {
+			return null;
+		}
+		List<String> names = new ArrayList<String>();
+		for (Element<?> element : TypeUtils.getAllChildren(input)) {
+			Integer maxOccurs = ValueUtils.getValue(MaxOccursProperty.getInstance(), element.getProperties());
+			if (maxOccurs != null && maxOccurs != 1 && isSupported(element)) {
+				names.add(element.getName());
+			}
+		}
+		if (names.isEmpty()) {
+			return null;
+		}
+		Collections.sort(names);
+		return String.join(",", names);
+	}
+
+	/**
+	 * Rewrites "in (:list)" for the given list fields (see getArrays), other "in (...)" are left alone
+	 */
+	public static String rewriteIn(String sql, String arrays) {
+		if (arrays == null) {
+			return sql;
+		}
+		List<String> names = Arrays.asList(arrays.split(","));
+		Matcher matcher = IN.matcher(sql);
+		StringBuffer buffer = new StringBuffer();
+		while (matcher.find()) {
+			if (names.contains(matcher.group(1))) {
+				matcher.appendReplacement(buffer, Matcher.quoteReplacement("in (select " + COLUMN + " from :" + matcher.group(1) + ")"));
+			}
+		}
+		matcher.appendTail(buffer);
+		return buffer.toString();
+	}
+
+	public static String getTypeName(Element<?> element) {
+		String columnType = getColumnType(((SimpleType<?>) element.getType()).getInstanceClass());
+		// e.g. "decimal(38, 10)" becomes "decimal_38_10"
+		return EAIRepositoryUtils.uncamelify(element.getName()) + "_" + columnType.replaceAll("[^\\w]+", "_").replaceAll("_+$", "") + "_array";
+	}
+
+	/**
+	 * The sql type of the single column in the table type
+	 */
+	public static String getColumnType(Class<?> instanceClass) {
+		// unicode so non-latin values survive, like the string columns in unicode mode
+		if (String.class.isAssignableFrom(instanceClass) || char[].class.isAssignableFrom(instanceClass) || URI.class.isAssignableFrom(instanceClass) || instanceClass.isEnum()) {
+			return MicrosoftTypes.isUnicode() ? "nvarchar(max)" : "nvarchar(4000)";
+		}
+		// the same type as the column so comparing with it does not convert the column and index seeks are possible
+		else if (UUID.class.isAssignableFrom(instanceClass)) {
+			return "uniqueidentifier";
+		}
+		else if (Integer.class.isAssignableFrom(instanceClass)) {
+			return "int";
+		}
+		else if (Long.class.isAssignableFrom(instanceClass)) {
+			return "bigint";
+		}
+		else if (Short.class.isAssignableFrom(instanceClass)) {
+			return "smallint";
+		}
+		else if (BigInteger.class.isAssignableFrom(instanceClass)) {
+			return "numeric(38, 0)";
+		}
+		else if (BigDecimal.class.isAssignableFrom(instanceClass)) {
+			return "decimal(38, 10)";
+		}
+		else if (Double.class.isAssignableFrom(instanceClass)) {
+			return "float(53)";
+		}
+		else if (Float.class.isAssignableFrom(instanceClass)) {
+			return "float(24)";
+		}
+		else if (Boolean.class.isAssignableFrom(instanceClass)) {
+			return "bit";
+		}
+		else if (Date.class.isAssignableFrom(instanceClass)) {
+			return "datetime2";
+		}
+		return null;
+	}
+
+	public static int getJdbcType(Class<?> instanceClass) {
+		// the 16 bytes of the uniqueidentifier, see convert()
+		if (UUID.class.isAssignableFrom(instanceClass)) {
+			return Types.BINARY;
+		}
+		else if (String.class.isAssignableFrom(instanceClass) || char[].class.isAssignableFrom(instanceClass) || URI.class.isAssignableFrom(instanceClass) || instanceClass.isEnum()) {
+			return Types.NVARCHAR;
+		}
+		else if (Integer.class.isAssignableFrom(instanceClass)) {
+			return Types.INTEGER;
+		}
+		else if (Long.class.isAssignableFrom(instanceClass)) {
+			return Types.BIGINT;
+		}
+		else if (Short.class.isAssignableFrom(instanceClass)) {
+			return Types.SMALLINT;
+		}
+		else if (BigInteger.class.isAssignableFrom(instanceClass) || BigDecimal.class.isAssignableFrom(instanceClass)) {
+			return Types.DECIMAL;
+		}
+		else if (Double.class.isAssignableFrom(instanceClass)) {
+			return Types.DOUBLE;
+		}
+		else if (Float.class.isAssignableFrom(instanceClass)) {
+			return Types.REAL;
+		}
+		else if (Boolean.class.isAssignableFrom(instanceClass)) {
+			return Types.BIT;
+		}
+		else if (Date.class.isAssignableFrom(instanceClass)) {
+			return Types.TIMESTAMP;
+		}
+		throw new IllegalArgumentException("No table valued parameter support for: " + instanceClass);
+	}
+
+	static Object convert(Object value) {
+		if (value == null) {
+			return null;
+		}
+		// the server copies binary values into a uniqueidentifier as is, so they have to be in its byte order
+		else if (value instanceof UUID) {
+			return MicrosoftUUIDs.toBytes((UUID) value);
+		}
+		else if (value instanceof URI || value instanceof Enum || value instanceof char[]) {
+			return value instanceof char[] ? new String((char[]) value) : value.toString();
+		}
+		else if (value instanceof BigInteger) {
+			return new BigDecimal((BigInteger) value);
+		}
+		else if (value instanceof Date && !(value instanceof java.sql.Timestamp)) {
+			return new java.sql.Timestamp(((Date) value).getTime());
+		}
+		return value;
+	}
+
+	public static void bind(PreparedStatement statement, Element<?> element, int index, Collection<?> collection) throws SQLException {
+		Class<?> instanceClass = ((SimpleType<?>) element.getType()).getInstanceClass();
+		String typeName = getTypeName(element);
+		if (provision) {
+			provision(statement.getConnection(), typeName, getColumnType(instanceClass));
+		}
+		SQLServerDataTable table = new SQLServerDataTable();
+		table.addColumnMetadata(COLUMN, getJdbcType(instanceClass));
+		// an empty table is valid and simply matches nothing
+		for (Object value : collection) {
+			table.addRow(convert(value));
+		}
+		SQLServerPreparedStatement sqlServerStatement = statement instanceof SQLServerPreparedStatement
+			? (SQLServerPreparedStatement) statement
+			: statement.unwrap(SQLServerPreparedStatement.class);
+		sqlServerStatement.setStructured(index, typeName, table);
+	}
+
+	static void provision(Connection connection, String typeName, String columnType) throws SQLException {
+		String key = connection.getCatalog() + ":" + typeName;
+		if (provisioned.contains(key)) {
+			return;
+		}
+		boolean exists;
+		PreparedStatement check = connection.prepareStatement("select 1 from sys.types where is_table_type = 1 and name = ?");
+		try {
+			check.setString(1, typeName);
+			ResultSet result = check.executeQuery();
+			try {
+				exists = result.next();
+			}
+			finally {
+				result.close();
+			}
+		}
+		finally {
+			check.close();
+		}
+		if (exists) {
+			provisioned.add(key);
+		}
+		// we don't mark newly created types as provisioned, if the surrounding transaction is rolled back, the type is gone as well
+		// the next call will see it in the sys.types once it is committed
+		else {
+			Statement create = connection.createStatement();
+			try {
+				create.execute("if type_id('" + typeName + "') is null create type " + typeName + " as table (" + COLUMN + " " + columnType + ")");
+			}
+			finally {
+				create.close();
+			}
+		}
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		MicrosoftTableValuedParameters.enabled = enabled;
+	}
+
+	public static boolean isProvision() {
+		return provision;
+	}
+
+	public static void setProvision(boolean provision) {
+		MicrosoftTableValuedParameters.provision = provision;
+	}
+}
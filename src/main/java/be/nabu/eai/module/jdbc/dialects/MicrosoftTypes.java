@@ -0,0 +1,306 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.Date;
+import java.util.UUID;
+
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.properties.FormatProperty;
+import be.nabu.libs.types.properties.IndexedProperty;
+import be.nabu.libs.types.properties.LengthProperty;
+import be.nabu.libs.types.properties.MaxLengthProperty;
+import be.nabu.libs.types.properties.PatternProperty;
+import be.nabu.libs.types.properties.UniqueProperty;
+
+/**
+ * Maps elements to sql server column types.
+ * Strings and binaries are bounded by their length restrictions where possible because a (n)varchar(max) can not be used in an index and is stored off-row.
+ */
+public class MicrosoftTypes {
+
+	// the maximum key size of a clustered index (and the primary key) in bytes
+	public static final int MAX_CLUSTERED_KEY = 900;
+	// the maximum key size of a nonclustered index in bytes (sql server 2016+)
+	public static final int MAX_NONCLUSTERED_KEY = 1700;
+
+	// whether we generate nvarchar instead of varchar for strings
+	private static boolean unicode = Boolean.parseBoolean(System.getProperty("mssql.create.unicode", "false"));
+
+	public static String getColumnType(Element<?> element) {
+		Class<?> instanceClass = ((SimpleType<?>) element.getType()).getInstanceClass();
+		if (String.class.isAssignableFrom(instanceClass) || char[].class.isAssignableFrom(instanceClass) || URI.class.isAssignableFrom(instanceClass)) {
+			return getStringType(getMaxLength(element), isKey(element));
+		}
+		else if (instanceClass.isEnum()) {
+			int length = 1;
+			for (Object constant : instanceClass.getEnumConstants()) {
+				length = Math.max(length, constant.toString().length());
+			}
+			return getStringType(length, false);
+		}
+		else if (byte[].class.isAssignableFrom(instanceClass)) {
+			Integer length = getMaxLength(element);
+			return length == null || length > 8000 ? "varbinary(max)" : "varbinary(" + length + ")";
+		}
+		else if (Integer.class.isAssignableFrom(instanceClass)) {
+			return "int";
+		}
+		else if (Long.class.isAssignableFrom(instanceClass)) {
+			return "bigint";
+		}
+		else if (BigInteger.class.isAssignableFrom(instanceClass)) {
+			return "numeric(38, 0)";
+		}
+		else if (BigDecimal.class.isAssignableFrom(instanceClass)) {
+			return "decimal(38, 10)";
+		}
+		else if (Double.class.isAssignableFrom(instanceClass)) {
+			return "float(53)";
+		}
+		else if (Float.class.isAssignableFrom(instanceClass)) {
+			return "float(24)";
+		}
+		else if (Short.class.isAssignableFrom(instanceClass)) {
+			return "smallint";
+		}
+		else if (Boolean.class.isAssignableFrom(instanceClass)) {
+			return "bit";
+		}
+		else if (UUID.class.isAssignableFrom(instanceClass)) {
+			return "uniqueidentifier";
+		}
+		else if (Date.class.isAssignableFrom(instanceClass)) {
+			Value<String> property = element.getProperty(FormatProperty.getInstance());
+			if (property != null && property.getValue().equals("date")) {
+				return "date";
+			}
+			else if (property != null && property.getValue().equals("time")) {
+				return "time";
+			}
+			return "datetime2";
+		}
+		else {
+			return null;
+		}
+	}
+
+	private static String getStringType(Integer length, boolean key) {
+		int max = unicode ? 4000 : 8000;
+		// a key column without a known length gets the widest type that still fits in an index
+		if (length == null && key) {
+			length = unicode ? MAX_CLUSTERED_KEY / 2 : MAX_CLUSTERED_KEY;
+		}
+		String type = unicode ? "nvarchar" : "varchar";
+		return length == null || length > max ? type + "(max)" : type + "(" + Math.max(1, length) + ")";
+	}
+
+	private static boolean isKey(Element<?> element) {
+		Boolean indexed = ValueUtils.getValue(IndexedProperty.getInstance(), element.getProperties());
+		Boolean unique = ValueUtils.getValue(UniqueProperty.getInstance(), element.getProperties());
+		return element.getName().equals("id") || (indexed != null && indexed) || (unique != null && unique);
+	}
+
+	/**
+	 * The maximum length from the length restrictions or derived from a simple pattern, null if it is unbounded
+	 */
+	public static Integer getMaxLength(Element<?> element) {
+		Integer length = ValueUtils.getValue(LengthProperty.getInstance(), element.getProperties());
+		if (length != null) {
+			return length;
+		}
+		Integer maxLength = ValueUtils.getValue(MaxLengthProperty.getInstance(), element.getProperties());
+		if (maxLength != null) {
+			return maxLength;
+		}
+		String pattern = ValueUtils.getValue(PatternProperty.getInstance(), element.getProperties());
+		return pattern == null ? null : getMaxLength(pattern);
+	}
+
+	/**
+	 * Calculates the maximum length of a simple pattern like "[A-Z]{2}[0-9]{2,10}".
+	 * Returns null if the pattern is unbounded or too complex (groups, alternatives, backreferences...)
+	 */
+	static Integer getMaxLength(String pattern) {
+		int length = 0;
+		int i = 0;
+		if (pattern.startsWith("^")) {
+			i++;
+		}
+		while (i < pattern.length()) {
+			char character = pattern.charAt(i);
+			// the end anchor
+			if (character == '$' && i == pattern.length() - 1) {
+				break;
+			}
+			// an atom
+			if (character == '[') {
+				int end = i + 1;
+				while (end < pattern.length() && pattern.charAt(end) != ']') {
+					if (pattern.charAt(end) == '\\') {
+						end++;
+					}
+					end++;
+				}
+				if (end >= pattern.length()) {
+					return null;
+				}
+				i = end + 1;
+			}
+			else if (character == '\\') {
+				if (i + 1 >= pattern.length() || Character.isDigit(pattern.charAt(i + 1))) {
+					return null;
+				}
+				i += 2;
+			}
+			else if (character == '(' || character == ')' || character == '|' || character == '*' || character == '+' || character == '{' || character == '?') {
+				return null;
+			}
+			else {
+				i++;
+			}
+			// the quantifier
+			int times = 1;
+			if (i < pattern.length()) {
+				char quantifier = pattern.charAt(i);
+				if (quantifier == '*' || quantifier == '+') {
+					return null;
+				}
+				else if (quantifier == '?') {
+					i++;
+				}
+				else if (quantifier == '{') {
+					int end = pattern.indexOf('}', i);
+					if (end < 0) {
+						return null;
+					}
+					String[] range = pattern.substring(i + 1, end).split(",", -1);
+					try {
+						if (range.length == 1) {
+							times = Integer.parseInt(range[0].trim());
+						}
+						else if (range[1].trim().isEmpty()) {
+							return null;
+						}
+						else {
+							times = Integer.parseInt(range[1].trim());
+						}
+					}
+					catch (NumberFormatException e) {
+						return null;
+					}
+					i = end + 1;
+				}
+			}
+			length += times;
+		}
+		return length == 0 ? null : length;
+	}
+
+	/**
+	 * The declared length of a character or binary column type (e.g. 100 for "varchar(100)"), Integer.MAX_VALUE for (max) and null for other types
+	 */
+	public static Integer getColumnLength(String columnType) {
+		if (columnType == null) {
+			return null;
+		}
+		String type = columnType.toLowerCase().trim();
+		int bracket = type.indexOf('(');
+		String base = bracket < 0 ? type : type.substring(0, bracket).trim();
+		if (!base.equals("varchar") && !base.equals("char") && !base.equals("nvarchar") && !base.equals("nchar") && !base.equals("varbinary") && !base.equals("binary")) {
+			return null;
+		}
+		else if (bracket < 0) {
+			return 1;
+		}
+		String length = type.substring(bracket + 1, type.indexOf(')')).trim();
+		return length.equals("max") ? Integer.MAX_VALUE : Integer.parseInt(length);
+	}
+
+	/**
+	 * The amount of bytes a column of this type takes in an index key, or null if it can not be part of an index key
+	 */
+	public static Integer getKeyWidth(String columnType) {
+		String type = columnType.toLowerCase().trim();
+		if (type.endsWith("(max)") || type.equals("text") || type.equals("ntext") || type.equals("image") || type.equals("xml")) {
+			return null;
+		}
+		int bracket = type.indexOf('(');
+		String base = bracket < 0 ? type : type.substring(0, bracket).trim();
+		if (base.equals("varchar") || base.equals("char") || base.equals("varbinary") || base.equals("binary")) {
+			return bracket < 0 ? 1 : Integer.parseInt(type.substring(bracket + 1, type.indexOf(')')).trim());
+		}
+		else if (base.equals("nvarchar") || base.equals("nchar")) {
+			return 2 * (bracket < 0 ? 1 : Integer.parseInt(type.substring(bracket + 1, type.indexOf(')')).trim()));
+		}
+		else if (base.equals("bit") || base.equals("tinyint")) {
+			return 1;
+		}
+		else if (base.equals("smallint")) {
+			return 2;
+		}
+		else if (base.equals("int") || base.equals("date") || base.equals("real")) {
+			return 4;
+		}
+		else if (base.equals("bigint") || base.equals("datetime2") || base.equals("datetime") || base.equals("time") || base.equals("rowversion")) {
+			return 8;
+		}
+		else if (base.equals("float")) {
+			return type.contains("(24)") ? 4 : 8;
+		}
+		else if (base.equals("uniqueidentifier")) {
+			return 16;
+		}
+		else if (base.equals("decimal") || base.equals("numeric")) {
+			return 17;
+		}
+		return 0;
+	}
+
+	/**
+	 * Checks that the columns of an index fit within the key size limit of sql server
+	 */
+	public static void validateKey(String indexName, boolean clustered, String[] columns, String[] columnTypes) {
+		int limit = clustered ? MAX_CLUSTERED_KEY : MAX_NONCLUSTERED_KEY;
+		int width = 0;
+		for (int i = 0; i < columns.length; i++) {
+			Integer columnWidth = getKeyWidth(columnTypes[i]);
+			if (columnWidth == null) {
+				throw new IllegalArgumentException("The column '" + columns[i] + "' of type " + columnTypes[i] + " can not be used as a key column in '" + indexName + "', add a length restriction");
+			}
+			width += columnWidth;
+		}
+		if (width > limit) {
+			throw new IllegalArgumentException("The key of '" + indexName + "' is " + width + " bytes wide, sql server allows at most " + limit + " bytes for a " + (clustered ? "clustered" : "nonclustered") + " index");
+		}
+	}
+
+	public static boolean isUnicode() {
+		return unicode;
+	}
+
+	public static void setUnicode(boolean unicode) {
+		MicrosoftTypes.unicode = unicode;
+	}
+}
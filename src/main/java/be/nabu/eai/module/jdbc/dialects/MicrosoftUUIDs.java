@@ -0,0 +1,137 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Conversion between java UUIDs and the 16 byte uniqueidentifier of sql server and generation of sequential UUIDs.
+ *
+ * Sql server stores the first three groups of a uniqueidentifier in little endian so the bytes can not be copied as is.
+ * It also sorts uniqueidentifiers on the last group first, then the fourth group and only then the first three (in reverse).
+ * The sequential UUIDs put an increasing value in the last two groups so new rows are appended to the end of a clustered index.
+ * They keep the RFC 4122 version (4) and variant bits so they pass any UUID validation.
+ */
+public class MicrosoftUUIDs {
+
+	// bind UUIDs as binary(16) instead of as strings in the statements the dialect binds itself (see MicrosoftSQL.bind), only do this if all uuid columns are actually uniqueidentifier
+	private static boolean nativeBinding = Boolean.parseBoolean(System.getProperty("mssql.uuid.native", "false"));
+	// generate sequential UUIDs instead of random ones for mandatory id fields
+	private static boolean sequential = Boolean.parseBoolean(System.getProperty("mssql.uuid.sequential", "false"));
+
+	// the high 48 bits are a timestamp in milliseconds, the low 14 bits a counter within that millisecond (the other 2 bits of that group are the variant)
+	private static final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Generates a UUID that is larger (in sql server ordering) than any UUID generated before it by this JVM.
+	 * The first 8 bytes are random so UUIDs generated by different servers in the same millisecond don't collide.
+	 */
+	public static UUID sequential() {
+		long now = System.currentTimeMillis() << 14;
+		long value = sequence.updateAndGet(previous -> Math.max(previous + 1, now));
+		// random with version 4
+		long mostSignificant = (ThreadLocalRandom.current().nextLong() & 0xffffffffffff0fffL) | 0x0000000000004000L;
+		// the variant bits are constant so they don't change the ordering of the counter in the fourth group
+		long leastSignificant = 0x8000000000000000L | ((value & 0x3fffL) << 48) | ((value >>> 14) & 0xffffffffffffL);
+		return new UUID(mostSignificant, leastSignificant);
+	}
+
+	/**
+	 * Either a sequential or a random UUID depending on the configuration
+	 */
+	public static UUID generate() {
+		return sequential ? sequential() : UUID.randomUUID();
+	}
+
+	/**
+	 * The 16 bytes that sql server uses to store the uniqueidentifier
+	 */
+	public static byte[] toBytes(UUID uuid) {
+		long most = uuid.getMostSignificantBits();
+		long least = uuid.getLeastSignificantBits();
+		byte[] bytes = new byte[16];
+		// first group (4 bytes) little endian
+		bytes[0] = (byte) (most >>> 32);
+		bytes[1] = (byte) (most >>> 40);
+		bytes[2] = (byte) (most >>> 48);
+		bytes[3] = (byte) (most >>> 56);
+		// second group (2 bytes) little endian
+		bytes[4] = (byte) (most >>> 16);
+		bytes[5] = (byte) (most >>> 24);
+		// third group (2 bytes) little endian
+		bytes[6] = (byte) most;
+		bytes[7] = (byte) (most >>> 8);
+		// the rest is big endian
+		for (int i = 0; i < 8; i++) {
+			bytes[8 + i] = (byte) (least >>> (56 - (8 * i)));
+		}
+		return bytes;
+	}
+
+	public static UUID fromBytes(byte[] bytes) {
+		if (bytes.length != 16) {
+			throw new IllegalArgumentException("A uniqueidentifier has 16 bytes, not " + bytes.length);
+		}
+		long most = ((bytes[3] & 0xffL) << 56)
+			| ((bytes[2] & 0xffL) << 48)
+			| ((bytes[1] & 0xffL) << 40)
+			| ((bytes[0] & 0xffL) << 32)
+			| ((bytes[5] & 0xffL) << 24)
+			| ((bytes[4] & 0xffL) << 16)
+			| ((bytes[7] & 0xffL) << 8)
+			| (bytes[6] & 0xffL);
+		long least = 0;
+		for (int i = 8; i < 16; i++) {
+			least = (least << 8) | (bytes[i] & 0xffL);
+		}
+		return new UUID(most, least);
+	}
+
+	/**
+	 * Binds the UUID as a 16 byte value, sql server converts the parameter (not the column) to a uniqueidentifier so index seeks are kept
+	 */
+	public static void bind(PreparedStatement statement, int index, UUID uuid) throws SQLException {
+		if (uuid == null) {
+			statement.setNull(index, Types.BINARY);
+		}
+		else {
+			statement.setBytes(index, toBytes(uuid));
+		}
+	}
+
+	public static boolean isNativeBinding() {
+		return nativeBinding;
+	}
+
+	public static void setNativeBinding(boolean nativeBinding) {
+		MicrosoftUUIDs.nativeBinding = nativeBinding;
+	}
+
+	public static boolean isSequential() {
+		return sequential;
+	}
+
+	public static void setSequential(boolean sequential) {
+		MicrosoftUUIDs.sequential = sequential;
+	}
+}
@@ -17,6 +17,11 @@
 
 package be.nabu.eai.module.jdbc.dialects;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import be.nabu.eai.module.jdbc.pool.JDBCPoolArtifact;
 import be.nabu.eai.module.jdbc.pool.api.JDBCPoolWizard;
 import be.nabu.eai.repository.api.Entry;
@@ -24,6 +29,9 @@ import be.nabu.eai.repository.resources.RepositoryEntry;
 
 public class MicrosoftWizard implements JDBCPoolWizard<MicrosoftParameters> {
 
+	// the url properties that are generated from the parameters, all other properties are left untouched
+	private static final List<String> MANAGED_PROPERTIES = Arrays.asList("database", "databasename", "packetsize", "responsebuffering", "selectmethod", "sendstringparametersasunicode", "multisubnetfailover", "applicationname", "applicationintent");
+
 	@Override
 	public String getIcon() {
 		return "mssql-icon.png";
@@ -62,6 +70,39 @@ public class MicrosoftWizard implements JDBCPoolWizard<MicrosoftParameters> {
 						parameters.setDatabase(split2[1]);
 					}
 				}
+				Map<String, String> urlProperties = getProperties(jdbcUrl);
+				MicrosoftPerformanceParameters performance = new MicrosoftPerformanceParameters();
+				boolean hasPerformance = false;
+				if (urlProperties.containsKey("packetsize")) {
+					performance.setPacketSize(Integer.parseInt(urlProperties.get("packetsize")));
+					hasPerformance = true;
+				}
+				if (urlProperties.containsKey("responsebuffering")) {
+					performance.setResponseBuffering(MicrosoftPerformanceParameters.ResponseBuffering.valueOf(urlProperties.get("responsebuffering").toUpperCase()));
+					hasPerformance = true;
+				}
+				if (urlProperties.containsKey("selectmethod")) {
+					performance.setSelectMethod(MicrosoftPerformanceParameters.SelectMethod.valueOf(urlProperties.get("selectmethod").toUpperCase()));
+					hasPerformance = true;
+				}
+				if (urlProperties.containsKey("sendstringparametersasunicode")) {
+					performance.setSendStringParametersAsUnicode(Boolean.parseBoolean(urlProperties.get("sendstringparametersasunicode")));
+					hasPerformance = true;
+				}
+				if (urlProperties.containsKey("multisubnetfailover")) {
+					performance.setMultiSubnetFailover(Boolean.parseBoolean(urlProperties.get("multisubnetfailover")));
+					hasPerformance = true;
+				}
+				if (urlProperties.containsKey("applicationname")) {
+					performance.setApplicationName(urlProperties.get("applicationname"));
+					hasPerformance = true;
+				}
+				if (hasPerformance) {
+					parameters.setPerformance(performance);
+				}
+				if (urlProperties.containsKey("applicationintent")) {
+					parameters.setReadIntent(urlProperties.get("applicationintent").equalsIgnoreCase("ReadOnly"));
+				}
 				// @2023-04-25 seems to be old code that does not work, it fails because it does not match the
 //				String [] subParts = parts[1].split("/");
 //				parameters.setPort(Integer.parseInt(subParts[0]));
@@ -90,6 +131,20 @@ public class MicrosoftWizard implements JDBCPoolWizard<MicrosoftParameters> {
 			if (properties.getDatabase() != null) {
 				jdbcUrl += ";databaseName=" + properties.getDatabase();
 			}
+			jdbcUrl += getPerformanceProperties(properties.getPerformance());
+			if (properties.getReadIntent() != null && properties.getReadIntent()) {
+				jdbcUrl += ";applicationIntent=ReadOnly";
+			}
+			// keep any other properties (e.g. encryption) that were configured manually
+			if (!isNew && existing.getConfig().getJdbcUrl() != null && existing.getConfig().getJdbcUrl().startsWith("jdbc:sqlserver://")) {
+				String [] parts = existing.getConfig().getJdbcUrl().substring("jdbc:sqlserver://".length()).split(";");
+				for (int i = 1; i < parts.length; i++) {
+					String key = parts[i].split("=")[0].trim();
+					if (!key.isEmpty() && !MANAGED_PROPERTIES.contains(key.toLowerCase())) {
+						jdbcUrl += ";" + parts[i];
+					}
+				}
+			}
 			existing.getConfig().setJdbcUrl(jdbcUrl); 
 			Class clazz = MicrosoftSQL.class;
 			existing.getConfig().setDialect(clazz);
@@ -101,4 +156,51 @@ public class MicrosoftWizard implements JDBCPoolWizard<MicrosoftParameters> {
 		}
 	}
 
+	/**
+	 * The properties in the jdbc url, the keys are lowercased because the driver treats them case insensitive
+	 */
+	static Map<String, String> getProperties(String jdbcUrl) {
+		Map<String, String> properties = new LinkedHashMap<String, String>();
+		String [] parts = jdbcUrl.split(";");
+		for (int i = 1; i < parts.length; i++) {
+			int index = parts[i].indexOf('=');
+			if (index > 0) {
+				properties.put(parts[i].substring(0, index).trim().toLowerCase(), parts[i].substring(index + 1).trim());
+			}
+		}
+		return properties;
+	}
+	
+	private static String getPerformanceProperties(MicrosoftPerformanceParameters performance) {
+		StringBuilder builder = new StringBuilder();
+		if (performance != null) {
+			MicrosoftPerformanceParameters.Profile profile = performance.getProfile();
+			Integer packetSize = performance.getPacketSize() != null || profile == null ? performance.getPacketSize() : Integer.valueOf(profile.getPacketSize());
+			if (packetSize != null) {
+				builder.append(";packetSize=").append(packetSize);
+			}
+			MicrosoftPerformanceParameters.ResponseBuffering responseBuffering = performance.getResponseBuffering() != null || profile == null ? performance.getResponseBuffering() : profile.getResponseBuffering();
+			if (responseBuffering != null) {
+				builder.append(";responseBuffering=").append(responseBuffering.name().toLowerCase());
+			}
+			MicrosoftPerformanceParameters.SelectMethod selectMethod = performance.getSelectMethod() != null || profile == null ? performance.getSelectMethod() : profile.getSelectMethod();
+			if (selectMethod != null) {
+				builder.append(";selectMethod=").append(selectMethod.name().toLowerCase());
+			}
+			Boolean unicode = performance.getSendStringParametersAsUnicode() != null || profile == null ? performance.getSendStringParametersAsUnicode() : Boolean.valueOf(profile.isSendStringParametersAsUnicode());
+			// only an explicit choice differs from the driver default
+			if (unicode != null && (!unicode || performance.getSendStringParametersAsUnicode() != null)) {
+				builder.append(";sendStringParametersAsUnicode=").append(unicode);
+			}
+			Boolean multiSubnetFailover = performance.getMultiSubnetFailover() != null || profile == null ? performance.getMultiSubnetFailover() : Boolean.valueOf(profile.isMultiSubnetFailover());
+			if (multiSubnetFailover != null) {
+				builder.append(";multiSubnetFailover=").append(multiSubnetFailover);
+			}
+			if (performance.getApplicationName() != null) {
+				builder.append(";applicationName=").append(performance.getApplicationName());
+			}
+		}
+		return builder.toString();
+	}
+
 }
@@ -0,0 +1,76 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class MicrosoftKeysetTest {
+
+	private static final String SQL = "select o.id, o.created from orders o";
+
+	@Test
+	public void testFirstPage() {
+		MicrosoftKeyset keyset = MicrosoftKeyset.build(SQL, Arrays.asList("id"), false, 20);
+		assertEquals("select top (20) * from (" + SQL + ") keyset_page order by keyset_page.id", keyset.getSql());
+		assertEquals(0, keyset.getParameterOrder().length);
+	}
+
+	@Test
+	public void testSingleKey() {
+		MicrosoftKeyset keyset = MicrosoftKeyset.build(SQL, Arrays.asList("id desc"), true, null);
+		assertEquals("select * from (" + SQL + ") keyset_page where (keyset_page.id < ?) order by keyset_page.id desc", keyset.getSql());
+		assertEquals(Arrays.asList((Object) 5), keyset.getParameters(Arrays.asList(5)));
+	}
+
+	@Test
+	public void testCompositeKey() {
+		MicrosoftKeyset keyset = MicrosoftKeyset.build(SQL, Arrays.asList("created", "id ASC"), true, 10);
+		assertEquals("select top (10) * from (" + SQL + ") keyset_page where keyset_page.created >= ? and ((keyset_page.created > ?) or (keyset_page.created = ? and keyset_page.id > ?))"
+			+ " order by keyset_page.created, keyset_page.id", keyset.getSql());
+		assertArrayEquals(new int[] { 0, 0, 0, 1 }, keyset.getParameterOrder());
+		assertEquals(Arrays.asList((Object) "c", "c", "c", 7), keyset.getParameters(Arrays.asList("c", 7)));
+	}
+
+	@Test
+	public void testQualifiedKey() {
+		MicrosoftKeyset keyset = MicrosoftKeyset.build(SQL, Arrays.asList("o.id desc"), true, null);
+		assertEquals("select * from (" + SQL + ") keyset_page where (keyset_page.id < ?) order by keyset_page.id desc", keyset.getSql());
+	}
+
+	@Test
+	public void testQuotedKey() {
+		assertEquals("[id]", MicrosoftKeyset.getColumn("[o].[id]"));
+		assertEquals("[order.id]", MicrosoftKeyset.getColumn("[order.id]"));
+		assertEquals("\"id\"", MicrosoftKeyset.getColumn("dbo.orders.\"id\""));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testExpressionKey() {
+		MicrosoftKeyset.build(SQL, Arrays.asList("coalesce(o.updated, o.created)"), true, null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoKeys() {
+		MicrosoftKeyset.build(SQL, Arrays.<String>asList(), false, null);
+	}
+}
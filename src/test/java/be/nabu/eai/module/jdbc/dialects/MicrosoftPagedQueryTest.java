@@ -0,0 +1,90 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class MicrosoftPagedQueryTest {
+
+	@Test
+	public void testWindowCount() {
+		assertEquals("select id, name, count(*) over() as total_count from customer where active = 1",
+			MicrosoftPagedQuery.addWindowCount("select id, name from customer where active = 1"));
+	}
+
+	@Test
+	public void testWindowCountUsesTheFirstFrom() {
+		// a subselect in the where clause and a table called "from" further on must not move the window
+		assertEquals("select id, count(*) over() as total_count from customer c where exists (select 1 from orders o where o.customer_id = c.id) and c.[from] > 0",
+			MicrosoftPagedQuery.addWindowCount("select id from customer c where exists (select 1 from orders o where o.customer_id = c.id) and c.[from] > 0"));
+		// temporal tables have a second top level from
+		assertEquals("select id, count(*) over() as total_count from customer for system_time from '2020-01-01' to '2021-01-01'",
+			MicrosoftPagedQuery.addWindowCount("select id from customer for system_time from '2020-01-01' to '2021-01-01'"));
+		assertEquals("select c.id, count(*) over() as total_count from customer c cross apply (select top 1 * from orders o where o.customer_id = c.id) x",
+			MicrosoftPagedQuery.addWindowCount("select c.id from customer c cross apply (select top 1 * from orders o where o.customer_id = c.id) x"));
+	}
+
+	@Test
+	public void testWindowCountWithCommonTableExpression() {
+		assertEquals("with recent as (select * from orders) select id, count(*) over() as total_count from recent",
+			MicrosoftPagedQuery.addWindowCount("with recent as (select * from orders) select id from recent"));
+	}
+
+	@Test
+	public void testNoWindowCount() {
+		assertNull(MicrosoftPagedQuery.addWindowCount("select distinct name from customer"));
+		assertNull(MicrosoftPagedQuery.addWindowCount("select id from customer union select id from supplier"));
+		assertNull(MicrosoftPagedQuery.addWindowCount("select id from customer except select customer_id from orders"));
+		assertNull(MicrosoftPagedQuery.addWindowCount("select 1"));
+	}
+
+	@Test
+	public void testCountUnnamedColumns() {
+		// a derived table needs named, unique columns
+		assertEquals("select count(*) from (select count(*), max(x) from t) total_query (total_column_1, total_column_2)",
+			MicrosoftPagedQuery.buildCount("select count(*), max(x) from t"));
+		assertEquals("select count(*) from (select c.id, o.id, cast(o.amount as decimal(10, 2)) from customer c join orders o on o.customer_id = c.id) total_query (total_column_1, total_column_2, total_column_3)",
+			MicrosoftPagedQuery.buildCount("select c.id, o.id, cast(o.amount as decimal(10, 2)) from customer c join orders o on o.customer_id = c.id"));
+	}
+
+	@Test
+	public void testCountSetOperation() {
+		assertEquals("select count(*) from (select id, 'a' from customer union select id, 'b' from supplier) total_query (total_column_1, total_column_2)",
+			MicrosoftPagedQuery.buildCount("select id, 'a' from customer union select id, 'b' from supplier"));
+	}
+
+	@Test
+	public void testCountStar() {
+		// the columns of a * are unknown, but the select list can be replaced
+		assertEquals("select count(*) from customer c join orders o on o.customer_id = c.id",
+			MicrosoftPagedQuery.buildCount("select * from customer c join orders o on o.customer_id = c.id"));
+		assertEquals("select count(*) from (select distinct * from customer) total_query",
+			MicrosoftPagedQuery.buildCount("select distinct * from customer"));
+	}
+
+	@Test
+	public void testCountWithCommonTableExpression() {
+		assertEquals("with recent as (select * from orders) select count(*) from (select customer_id, count(*) from recent group by customer_id) total_query (total_column_1, total_column_2)",
+			MicrosoftPagedQuery.buildCount("with recent as (select * from orders) select customer_id, count(*) from recent group by customer_id"));
+		assertEquals("with recent as (select * from orders) select count(*) from recent",
+			MicrosoftPagedQuery.buildCount("with recent as (select * from orders) select * from recent"));
+	}
+}
@@ -0,0 +1,65 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MicrosoftQueryHintsTest {
+
+	@Test
+	public void testFingerprint() {
+		assertEquals("select * from customer where id = ? and name = ?", MicrosoftQueryHints.fingerprint("SELECT *\n\tFROM Customer WHERE id = 12 AND name = 'it''s me'"));
+	}
+
+	@Test
+	public void testFingerprintParameters() {
+		// named, positional and literal values all look the same
+		String expected = "select * from customer where id in (?, ?, ?)";
+		assertEquals(expected, MicrosoftQueryHints.fingerprint("select * from customer where id in (:first, ?, 3.5)"));
+		assertEquals(expected, MicrosoftQueryHints.fingerprint("select * from customer where id in (1, 2, 3)"));
+	}
+
+	@Test
+	public void testFingerprintKeepsIdentifiers() {
+		// digits in identifiers and quoted identifiers are not literals
+		assertEquals("select col1, [my col] from table2", MicrosoftQueryHints.fingerprint("select col1, [My Col] from table2"));
+		assertEquals("select \"id\" from customer", MicrosoftQueryHints.fingerprint("select \"ID\" from customer"));
+	}
+
+	@Test
+	public void testFingerprintComments() {
+		assertEquals("select id from customer", MicrosoftQueryHints.fingerprint("  select id -- the id\nfrom /* all */ customer  "));
+	}
+
+	@Test
+	public void testApply() {
+		assertEquals("select id from customer OPTION (RECOMPILE)", MicrosoftQueryHints.apply("select id from customer", "RECOMPILE"));
+		assertEquals("select id from customer OPTION (RECOMPILE);", MicrosoftQueryHints.apply(" select id from customer ; ", "RECOMPILE"));
+		assertEquals("select id from customer", MicrosoftQueryHints.apply("select id from customer", null));
+		assertEquals("select id from customer", MicrosoftQueryHints.apply("select id from customer", ""));
+	}
+
+	@Test
+	public void testApplyToExistingOption() {
+		assertEquals("select id from customer option (maxdop 4, RECOMPILE)", MicrosoftQueryHints.apply("select id from customer option (maxdop 4)", "RECOMPILE"));
+		// an option in a subselect is not the option clause of the statement
+		assertEquals("select id from (select id from customer option (maxdop 4)) c OPTION (RECOMPILE)", MicrosoftQueryHints.apply("select id from (select id from customer option (maxdop 4)) c", "RECOMPILE"));
+	}
+}
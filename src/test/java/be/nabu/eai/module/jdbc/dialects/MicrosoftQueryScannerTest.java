@@ -0,0 +1,123 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MicrosoftQueryScannerTest {
+
+	@Test
+	public void testTopLevelOrderBy() {
+		String sql = "select id from customer order by id";
+		assertEquals(sql.indexOf("order"), MicrosoftQueryScanner.getTopLevelOrderBy(sql));
+	}
+
+	@Test
+	public void testNoOrderBy() {
+		assertEquals(-1, MicrosoftQueryScanner.getTopLevelOrderBy("select id from customer"));
+	}
+
+	@Test
+	public void testNestedOrderBy() {
+		// window functions and subselects don't count
+		assertEquals(-1, MicrosoftQueryScanner.getTopLevelOrderBy("select id, row_number() over (order by created) from (select top 10 * from customer order by id) c"));
+	}
+
+	@Test
+	public void testLastOrderBy() {
+		String sql = "select row_number() over (order by created) rn from customer ORDER\n\tBY rn";
+		assertEquals(sql.indexOf("ORDER"), MicrosoftQueryScanner.getTopLevelOrderBy(sql));
+	}
+
+	@Test
+	public void testOrderByInLiteralsAndComments() {
+		assertEquals(-1, MicrosoftQueryScanner.getTopLevelOrderBy("select 'order by id' as text, [order by] from customer -- order by id"));
+		assertEquals(-1, MicrosoftQueryScanner.getTopLevelOrderBy("select 'it''s an order by' from customer /* order by /* nested */ order by */"));
+		assertEquals(-1, MicrosoftQueryScanner.getTopLevelOrderBy("select \"order by\" from customer"));
+	}
+
+	@Test
+	public void testCommentBetweenKeywords() {
+		String sql = "select id from customer order /* the key */ by id";
+		assertEquals(sql.indexOf("order"), MicrosoftQueryScanner.getTopLevelOrderBy(sql));
+	}
+
+	@Test
+	public void testLiteralBetweenKeywords() {
+		assertEquals(-1, MicrosoftQueryScanner.findTopLevel("select 'order' 'by' from customer", "order", "by"));
+	}
+
+	@Test
+	public void testWordBoundaries() {
+		assertEquals(-1, MicrosoftQueryScanner.getTopLevelOrderBy("select reorder by_value from customer"));
+		assertEquals(-1, MicrosoftQueryScanner.findTopLevel("select @order from customer", "order"));
+	}
+
+	@Test
+	public void testTopLevelOption() {
+		String sql = "select id from customer order by id option (recompile)";
+		assertEquals(sql.indexOf("option"), MicrosoftQueryScanner.getTopLevelOption(sql));
+		assertEquals(-1, MicrosoftQueryScanner.getTopLevelOption("select [option] from customer"));
+		assertEquals(-1, MicrosoftQueryScanner.getTopLevelOption("select id from (select id from customer option (recompile)) c"));
+		// an option without hints is not an option clause
+		assertEquals(-1, MicrosoftQueryScanner.getTopLevelOption("select id option from customer"));
+	}
+
+	@Test
+	public void testUnterminated() {
+		assertEquals(-1, MicrosoftQueryScanner.getTopLevelOrderBy("select 'order by"));
+		assertEquals(-1, MicrosoftQueryScanner.getTopLevelOrderBy("select id /* order by id"));
+	}
+
+	@Test
+	public void testReadOnly() {
+		assertTrue(MicrosoftQueryScanner.isReadOnly("select id, name from customer where active = 1"));
+		assertTrue(MicrosoftQueryScanner.isReadOnly("  (select id from customer)"));
+		assertTrue(MicrosoftQueryScanner.isReadOnly("with recent as (select * from orders) select * from recent"));
+		// the words only count outside of literals, quoted identifiers and comments
+		assertTrue(MicrosoftQueryScanner.isReadOnly("select 'delete' as action, [update] from customer -- insert"));
+	}
+
+	@Test
+	public void testPagedReadOnly() {
+		// the pagination that limit() generates
+		assertTrue(MicrosoftQueryScanner.isReadOnly("select id, name from customer where active = 1 ORDER BY id OFFSET 0 ROWS FETCH NEXT 20 ROWS ONLY"));
+		assertTrue(MicrosoftQueryScanner.isReadOnly("select id from customer ORDER BY 1 OFFSET 40 ROWS FETCH NEXT 20 ROWS ONLY option (recompile)"));
+	}
+
+	@Test
+	public void testNotReadOnly() {
+		assertFalse(MicrosoftQueryScanner.isReadOnly("update customer set active = 0"));
+		assertFalse(MicrosoftQueryScanner.isReadOnly("select * into #copy from customer"));
+		assertFalse(MicrosoftQueryScanner.isReadOnly("select * from customer with (updlock)"));
+		assertFalse(MicrosoftQueryScanner.isReadOnly("with gone as (select * from orders) delete from gone"));
+		assertFalse(MicrosoftQueryScanner.isReadOnly("exec sp_who"));
+		assertFalse(MicrosoftQueryScanner.isReadOnly("-- select\nselect 1; drop table customer"));
+		assertFalse(MicrosoftQueryScanner.isReadOnly(""));
+	}
+
+	@Test
+	public void testSequenceIsNotReadOnly() {
+		assertFalse(MicrosoftQueryScanner.isReadOnly("select next value for order_sequence"));
+		assertFalse(MicrosoftQueryScanner.isReadOnly("select NEXT /* the */ VALUE\n\tFOR order_sequence as id"));
+	}
+}
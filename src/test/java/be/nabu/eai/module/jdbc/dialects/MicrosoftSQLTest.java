@@ -0,0 +1,35 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MicrosoftSQLTest {
+
+	private final MicrosoftSQL dialect = new MicrosoftSQL();
+
+	@Test
+	public void testPagedSelectIsReadOnly() {
+		// the paged selects are exactly the ones that should go to the replicas
+		assertTrue(MicrosoftSQL.isReadOnly(dialect.limit("select id, name from customer where active = 1", 0l, 20)));
+		assertTrue(MicrosoftSQL.isReadOnly(dialect.limit("select id, name from customer order by name", 40l, 20)));
+		assertTrue(MicrosoftSQL.isReadOnly(dialect.limit("select id from customer option (recompile)", null, 10)));
+	}
+}
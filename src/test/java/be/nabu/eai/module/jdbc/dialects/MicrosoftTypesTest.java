@@ -0,0 +1,98 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class MicrosoftTypesTest {
+
+	@Test
+	public void testPatternLength() {
+		assertEquals(Integer.valueOf(3), MicrosoftTypes.getMaxLength("abc"));
+		assertEquals(Integer.valueOf(12), MicrosoftTypes.getMaxLength("^[A-Z]{2}[0-9]{2,10}$"));
+		// an optional atom still counts towards the maximum
+		assertEquals(Integer.valueOf(4), MicrosoftTypes.getMaxLength("\\d{3}-?"));
+		// escaped characters in a class
+		assertEquals(Integer.valueOf(2), MicrosoftTypes.getMaxLength("[\\]a][b]"));
+		assertEquals(Integer.valueOf(5), MicrosoftTypes.getMaxLength("[a-z]{5}"));
+	}
+
+	@Test
+	public void testUnboundedPattern() {
+		assertNull(MicrosoftTypes.getMaxLength("[a-z]+"));
+		assertNull(MicrosoftTypes.getMaxLength("a*"));
+		assertNull(MicrosoftTypes.getMaxLength("[0-9]{2,}"));
+		// too complex to calculate
+		assertNull(MicrosoftTypes.getMaxLength("(ab){2}"));
+		assertNull(MicrosoftTypes.getMaxLength("a|bc"));
+		assertNull(MicrosoftTypes.getMaxLength("(a)\\1"));
+		// malformed
+		assertNull(MicrosoftTypes.getMaxLength("[abc"));
+		assertNull(MicrosoftTypes.getMaxLength("a{2"));
+		assertNull(MicrosoftTypes.getMaxLength("a{x}"));
+		assertNull(MicrosoftTypes.getMaxLength("^$"));
+	}
+
+	@Test
+	public void testColumnLength() {
+		assertEquals(Integer.valueOf(100), MicrosoftTypes.getColumnLength("varchar(100)"));
+		assertEquals(Integer.valueOf(50), MicrosoftTypes.getColumnLength("NVARCHAR( 50 )"));
+		assertEquals(Integer.valueOf(16), MicrosoftTypes.getColumnLength("binary(16)"));
+		assertEquals(Integer.valueOf(Integer.MAX_VALUE), MicrosoftTypes.getColumnLength("varbinary(max)"));
+		assertEquals(Integer.valueOf(1), MicrosoftTypes.getColumnLength("char"));
+		assertNull(MicrosoftTypes.getColumnLength("int"));
+		assertNull(MicrosoftTypes.getColumnLength("decimal(38, 10)"));
+		assertNull(MicrosoftTypes.getColumnLength(null));
+	}
+
+	@Test
+	public void testKeyWidth() {
+		assertEquals(Integer.valueOf(100), MicrosoftTypes.getKeyWidth("varchar(100)"));
+		assertEquals(Integer.valueOf(200), MicrosoftTypes.getKeyWidth("nvarchar(100)"));
+		assertEquals(Integer.valueOf(16), MicrosoftTypes.getKeyWidth("uniqueidentifier"));
+		assertEquals(Integer.valueOf(4), MicrosoftTypes.getKeyWidth("float(24)"));
+		assertEquals(Integer.valueOf(8), MicrosoftTypes.getKeyWidth("float(53)"));
+		assertEquals(Integer.valueOf(17), MicrosoftTypes.getKeyWidth("decimal(38, 10)"));
+		assertNull(MicrosoftTypes.getKeyWidth("nvarchar(max)"));
+		assertNull(MicrosoftTypes.getKeyWidth("xml"));
+	}
+
+	@Test
+	public void testValidKey() {
+		MicrosoftTypes.validateKey("pk", true, new String[] { "code" }, new String[] { "varchar(900)" });
+		MicrosoftTypes.validateKey("idx", false, new String[] { "code", "id" }, new String[] { "nvarchar(842)", "uniqueidentifier" });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testClusteredKeyTooWide() {
+		MicrosoftTypes.validateKey("pk", true, new String[] { "code", "id" }, new String[] { "varchar(900)", "int" });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNonclusteredKeyTooWide() {
+		MicrosoftTypes.validateKey("idx", false, new String[] { "code" }, new String[] { "nvarchar(851)" });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMaxKey() {
+		MicrosoftTypes.validateKey("idx", false, new String[] { "description" }, new String[] { "varchar(max)" });
+	}
+}
@@ -0,0 +1,96 @@
+/*
+* Copyright (C) 2017 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.jdbc.dialects;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class MicrosoftUUIDsTest {
+
+	// sql server stores the first three groups little endian and the last two as is
+	private static final UUID GUID = UUID.fromString("00112233-4455-6677-8899-aabbccddeeff");
+	private static final byte[] BYTES = new byte[] {
+		0x33, 0x22, 0x11, 0x00,
+		0x55, 0x44,
+		0x77, 0x66,
+		(byte) 0x88, (byte) 0x99,
+		(byte) 0xaa, (byte) 0xbb, (byte) 0xcc, (byte) 0xdd, (byte) 0xee, (byte) 0xff
+	};
+
+	@Test
+	public void testToBytes() {
+		assertArrayEquals(BYTES, MicrosoftUUIDs.toBytes(GUID));
+	}
+
+	@Test
+	public void testFromBytes() {
+		assertEquals(GUID, MicrosoftUUIDs.fromBytes(BYTES));
+	}
+
+	@Test
+	public void testRoundTrip() {
+		for (int i = 0; i < 1000; i++) {
+			UUID uuid = UUID.randomUUID();
+			assertEquals(uuid, MicrosoftUUIDs.fromBytes(MicrosoftUUIDs.toBytes(uuid)));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidLength() {
+		MicrosoftUUIDs.fromBytes(new byte[15]);
+	}
+
+	@Test
+	public void testSequentialOrder() {
+		UUID previous = MicrosoftUUIDs.sequential();
+		// enough to overflow the counter within a single millisecond
+		for (int i = 0; i < 100000; i++) {
+			UUID next = MicrosoftUUIDs.sequential();
+			// sql server compares the last group first, then the fourth group
+			assertTrue(compare(previous, next) < 0);
+			previous = next;
+		}
+	}
+
+	@Test
+	public void testSequentialIsRfc4122() {
+		for (int i = 0; i < 100000; i++) {
+			UUID uuid = MicrosoftUUIDs.sequential();
+			assertEquals(4, uuid.version());
+			assertEquals(2, uuid.variant());
+		}
+	}
+
+	// the sql server ordering of uniqueidentifiers: bytes 10-15, then 8-9, then 6-7, 4-5 and 0-3
+	private static int compare(UUID first, UUID second) {
+		byte[] a = MicrosoftUUIDs.toBytes(first), b = MicrosoftUUIDs.toBytes(second);
+		int[] order = { 10, 11, 12, 13, 14, 15, 8, 9, 6, 7, 4, 5, 0, 1, 2, 3 };
+		for (int index : order) {
+			int result = Integer.compare(a[index] & 0xff, b[index] & 0xff);
+			if (result != 0) {
+				return result;
+			}
+		}
+		return 0;
+	}
+}